@@ -0,0 +1,101 @@
+package fr.vsct.dt.nsq;
+
+import fr.vsct.dt.nsq.embedded.EmbeddedNsqd;
+import fr.vsct.dt.nsq.lookup.NSQLookup;
+import com.google.common.collect.Sets;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end throughput: messages are published with MPUB and consumed, finished, by a consumer of the
+ * in-process nsqd. Every operation is one message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConsumerBenchmark {
+    private static final int BATCH = 1000;
+    private static final String TOPIC = "benchmark";
+
+    @Param({"100", "4096"})
+    public int messageSize;
+
+    @Param({"200"})
+    public int maxInFlight;
+
+    private final AtomicLong consumed = new AtomicLong();
+    private EmbeddedNsqd nsqd;
+    private NSQProducer producer;
+    private NSQConsumer consumer;
+    private List<byte[]> bodies;
+    private long expected = 0;
+
+    @Setup
+    public void setup() {
+        nsqd = new EmbeddedNsqd().start();
+        final Set<ServerAddress> addresses = Sets.newHashSet(nsqd.getAddress());
+        final NSQLookup lookup = new NSQLookup() {
+            @Override
+            public Set<ServerAddress> lookup(final String topic) {
+                return addresses;
+            }
+
+            @Override
+            public void addLookupAddress(final String addr, final int port) {
+            }
+        };
+        consumer = new NSQConsumer(lookup, TOPIC, "benchmark", message -> {
+            consumed.incrementAndGet();
+            message.finished();
+        }).setMaxInFlight(maxInFlight).start();
+        producer = new NSQProducer().addAddress("127.0.0.1", nsqd.getPort()).start();
+        bodies = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            bodies.add(new byte[messageSize]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        consumer.shutdown();
+        producer.shutdown();
+        nsqd.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void publishAndConsume() throws Exception {
+        for (int i = 0; i < BATCH; i += bodies.size()) {
+            producer.produceMulti(TOPIC, bodies);
+        }
+        expected += BATCH;
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (consumed.get() < expected) {
+            if (System.nanoTime() > deadline) {
+                throw new TimeoutException("Only " + consumed.get() + " of " + expected + " messages consumed");
+            }
+            Thread.yield();
+        }
+    }
+}
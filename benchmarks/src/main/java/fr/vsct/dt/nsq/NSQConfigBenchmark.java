@@ -0,0 +1,40 @@
+package fr.vsct.dt.nsq;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building of the IDENTIFY body sent on every new connection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NSQConfigBenchmark {
+    private NSQConfig config;
+
+    @Setup
+    public void setup() {
+        config = new NSQConfig();
+        config.setHeartbeatInterval(30000);
+        config.setMsgTimeout(60000);
+        config.setCompression(NSQConfig.Compression.SNAPPY);
+    }
+
+    @Benchmark
+    public String identify() {
+        return config.toString();
+    }
+}
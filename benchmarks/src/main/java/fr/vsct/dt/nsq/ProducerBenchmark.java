@@ -0,0 +1,95 @@
+package fr.vsct.dt.nsq;
+
+import fr.vsct.dt.nsq.embedded.EmbeddedNsqd;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publish throughput against an in-process nsqd on the loopback interface. Every operation is one message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProducerBenchmark {
+    private static final int BATCH = 100;
+    private static final String TOPIC = "benchmark";
+
+    @Param({"100", "4096"})
+    public int messageSize;
+
+    private EmbeddedNsqd nsqd;
+    private NSQProducer producer;
+    private NSQProducer batchingProducer;
+    private byte[] body;
+    private List<byte[]> bodies;
+
+    @Setup
+    public void setup() {
+        nsqd = new EmbeddedNsqd().start();
+        producer = new NSQProducer().addAddress("127.0.0.1", nsqd.getPort()).start();
+        batchingProducer = new NSQProducer().addAddress("127.0.0.1", nsqd.getPort())
+                .setBatchConfig(new BatchConfig().setMaxMessages(BATCH).setLingerMillis(1)).start();
+        body = new byte[messageSize];
+        bodies = new ArrayList<>();
+        for (int i = 0; i < BATCH; i++) {
+            bodies.add(body);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        producer.shutdown();
+        batchingProducer.shutdown();
+        nsqd.close();
+    }
+
+    @Benchmark
+    public void pub() throws Exception {
+        producer.produce(TOPIC, body);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void pubPipelined() throws Exception {
+        awaitAll(producer);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void mpub() throws Exception {
+        producer.produceMulti(TOPIC, bodies);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void pubBatched() throws Exception {
+        awaitAll(batchingProducer);
+    }
+
+    private void awaitAll(final NSQProducer p) throws Exception {
+        final CompletableFuture<?>[] futures = new CompletableFuture[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            futures[i] = p.produceAsync(TOPIC, body);
+        }
+        CompletableFuture.allOf(futures).get(10, TimeUnit.SECONDS);
+    }
+}
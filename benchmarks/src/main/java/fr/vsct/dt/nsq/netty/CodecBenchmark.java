@@ -0,0 +1,148 @@
+package fr.vsct.dt.nsq.netty;
+
+import fr.vsct.dt.nsq.NSQCommand;
+import fr.vsct.dt.nsq.frames.MessageFrame;
+import fr.vsct.dt.nsq.frames.NSQFrame;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the encoding of commands and of the decoding of frames, without any network.
+ * Run with {@code -prof gc} to get the allocation per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    private static final byte[] MESSAGE_ID = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    @Param({"100", "4096"})
+    public int messageSize;
+
+    @Param({"100"})
+    public int messagesPerMpub;
+
+    private final List<Object> out = new ArrayList<>();
+    private NSQEncoder encoder;
+    private NSQDecoder decoder;
+    private ChannelHandlerContext encoderContext;
+    private ChannelHandlerContext decoderContext;
+    private EmbeddedChannel channel;
+    private byte[] body;
+    private List<byte[]> bodies;
+    private ByteBuf messageFrame;
+    private ByteBuf messageFramePayload;
+
+    @Setup
+    public void setup() {
+        encoder = new NSQEncoder();
+        decoder = new NSQDecoder();
+        channel = new EmbeddedChannel(decoder, encoder);
+        channel.config().setAllocator(PooledByteBufAllocator.DEFAULT);
+        encoderContext = channel.pipeline().context(encoder);
+        decoderContext = channel.pipeline().context(decoder);
+
+        body = new byte[messageSize];
+        bodies = new ArrayList<>();
+        for (int i = 0; i < messagesPerMpub; i++) {
+            bodies.add(body);
+        }
+
+        messageFramePayload = Unpooled.buffer();
+        messageFramePayload.writeLong(System.nanoTime());
+        messageFramePayload.writeShort(1);
+        messageFramePayload.writeBytes(MESSAGE_ID);
+        messageFramePayload.writeBytes(body);
+
+        messageFrame = Unpooled.buffer();
+        messageFrame.writeInt(4 + messageFramePayload.readableBytes());
+        messageFrame.writeInt(2);
+        messageFrame.writeBytes(messageFramePayload, 0, messageFramePayload.readableBytes());
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finish();
+    }
+
+    @Benchmark
+    public int encodePub() throws Exception {
+        return encode(NSQCommand.publish("benchmark", body));
+    }
+
+    @Benchmark
+    public int encodeMpub() throws Exception {
+        return encode(NSQCommand.multiPublish("benchmark", bodies));
+    }
+
+    @Benchmark
+    public int encodeFin() throws Exception {
+        return encode(NSQCommand.finish(MESSAGE_ID));
+    }
+
+    @Benchmark
+    public int encodeRdy() throws Exception {
+        return encode(NSQCommand.ready(200));
+    }
+
+    @Benchmark
+    public int decodeMessage() throws Exception {
+        decoder.decode(decoderContext, messageFrame.duplicate(), out);
+        final MessageFrame frame = (MessageFrame) out.get(0);
+        out.clear();
+        final int size = frame.getMessageBuffer().readableBytes();
+        frame.getMessageBuffer().release();
+        return size;
+    }
+
+    @Benchmark
+    public int parseMessageFrame() {
+        final MessageFrame frame = (MessageFrame) NSQFrame.instance(2);
+        frame.setData(messageFramePayload.duplicate());
+        final int attempts = frame.getAttempts();
+        frame.getMessageBuffer().release();
+        return attempts;
+    }
+
+    @Benchmark
+    public int parseMessageFrameAndCopyBody() {
+        final MessageFrame frame = (MessageFrame) NSQFrame.instance(2);
+        frame.setData(messageFramePayload.duplicate());
+        final int size = frame.getMessageBody().length;
+        frame.getMessageBuffer().release();
+        return size;
+    }
+
+    private int encode(final NSQCommand command) throws Exception {
+        encoder.encode(encoderContext, command, out);
+        final ByteBuf buf = (ByteBuf) out.get(0);
+        out.clear();
+        final int size = buf.readableBytes();
+        ReferenceCountUtil.release(buf);
+        return size;
+    }
+}
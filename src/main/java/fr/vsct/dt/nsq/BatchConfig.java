@@ -0,0 +1,52 @@
+package fr.vsct.dt.nsq;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Settings of the producer auto-batching mode, where single messages published to the same topic are
+ * coalesced into MPUB commands. A batch is sent as soon as one of the limits is reached.
+ */
+public class BatchConfig {
+    private int maxMessages = 100;
+    private int maxBytes = 512 * 1024;
+    private long lingerMillis = 5;
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    /**
+     * Maximum number of messages in one MPUB.
+     */
+    public BatchConfig setMaxMessages(final int maxMessages) {
+        Preconditions.checkArgument(maxMessages > 0, "maxMessages must be positive");
+        this.maxMessages = maxMessages;
+        return this;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Maximum size of the MPUB body, it must stay below the max-body-size of nsqd.
+     */
+    public BatchConfig setMaxBytes(final int maxBytes) {
+        Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive");
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    public long getLingerMillis() {
+        return lingerMillis;
+    }
+
+    /**
+     * How long the first message of a batch may wait for other messages before the batch is sent.
+     */
+    public BatchConfig setLingerMillis(final long lingerMillis) {
+        Preconditions.checkArgument(lingerMillis >= 0, "lingerMillis must not be negative");
+        this.lingerMillis = lingerMillis;
+        return this;
+    }
+}
@@ -0,0 +1,114 @@
+package fr.vsct.dt.nsq;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Settings of the producer buffered mode, where published messages are queued in memory and sent in MPUB batches by
+ * a background thread. The queued messages take at most maxBytes, the overflow policy decides what happens beyond.
+ */
+public class BufferConfig {
+
+    /**
+     * What happens to a message published while the buffer is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The publishing thread waits for room, at most maxBlockMillis, then fails.
+         */
+        BLOCK,
+        /**
+         * The publish fails right away with a {@link fr.vsct.dt.nsq.exceptions.BufferFullException}.
+         */
+        FAIL,
+        /**
+         * The oldest queued messages are discarded to make room, their futures fail.
+         */
+        DROP_OLDEST,
+        /**
+         * The new message is discarded, its future fails but the publish does not throw.
+         */
+        DROP_NEWEST
+    }
+
+    private long maxBytes = 16 * 1024 * 1024;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private long maxBlockMillis = 15000;
+    private int maxBatchMessages = 100;
+    private int maxBatchBytes = 512 * 1024;
+    private int maxPendingBatches = 4;
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Maximum size of the queued messages, 16 MB by default. Batches being sent are not counted.
+     */
+    public BufferConfig setMaxBytes(final long maxBytes) {
+        Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive");
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public BufferConfig setOverflowPolicy(final OverflowPolicy overflowPolicy) {
+        Preconditions.checkNotNull(overflowPolicy);
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    public long getMaxBlockMillis() {
+        return maxBlockMillis;
+    }
+
+    /**
+     * How long a publish waits for room with the {@link OverflowPolicy#BLOCK} policy.
+     */
+    public BufferConfig setMaxBlockMillis(final long maxBlockMillis) {
+        Preconditions.checkArgument(maxBlockMillis >= 0, "maxBlockMillis must not be negative");
+        this.maxBlockMillis = maxBlockMillis;
+        return this;
+    }
+
+    public int getMaxBatchMessages() {
+        return maxBatchMessages;
+    }
+
+    /**
+     * Maximum number of messages in one MPUB.
+     */
+    public BufferConfig setMaxBatchMessages(final int maxBatchMessages) {
+        Preconditions.checkArgument(maxBatchMessages > 0, "maxBatchMessages must be positive");
+        this.maxBatchMessages = maxBatchMessages;
+        return this;
+    }
+
+    public int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    /**
+     * Maximum size of the MPUB body, it must stay below the max-body-size of nsqd.
+     */
+    public BufferConfig setMaxBatchBytes(final int maxBatchBytes) {
+        Preconditions.checkArgument(maxBatchBytes > 0, "maxBatchBytes must be positive");
+        this.maxBatchBytes = maxBatchBytes;
+        return this;
+    }
+
+    public int getMaxPendingBatches() {
+        return maxPendingBatches;
+    }
+
+    /**
+     * Number of batches waiting for the nsqd response at the same time.
+     */
+    public BufferConfig setMaxPendingBatches(final int maxPendingBatches) {
+        Preconditions.checkArgument(maxPendingBatches > 0, "maxPendingBatches must be positive");
+        this.maxPendingBatches = maxPendingBatches;
+        return this;
+    }
+}
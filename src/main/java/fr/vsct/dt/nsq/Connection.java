@@ -1,29 +1,46 @@
 package fr.vsct.dt.nsq;
 
 import fr.vsct.dt.nsq.callbacks.NSQErrorCallback;
+import fr.vsct.dt.nsq.exceptions.DisconnectedException;
 import fr.vsct.dt.nsq.exceptions.NSQException;
 import fr.vsct.dt.nsq.exceptions.NoConnectionsException;
 import fr.vsct.dt.nsq.frames.ErrorFrame;
 import fr.vsct.dt.nsq.frames.MessageFrame;
 import fr.vsct.dt.nsq.frames.NSQFrame;
 import fr.vsct.dt.nsq.frames.ResponseFrame;
+import fr.vsct.dt.nsq.metrics.Counter;
+import fr.vsct.dt.nsq.metrics.MetricsRegistry;
+import fr.vsct.dt.nsq.metrics.NoopMetricsRegistry;
 import fr.vsct.dt.nsq.netty.NSQClientInitializer;
+import fr.vsct.dt.nsq.netty.NSQMetricsHandler;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPromise;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
 import java.util.Date;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Connection {
     public static final byte[] MAGIC_PROTOCOL_VERSION = "  V2".getBytes();
@@ -33,44 +50,39 @@ public class Connection {
     private final Channel channel;
     private NSQConsumer consumer = null;
     private NSQErrorCallback errorCallback = null;
-    private final LinkedBlockingQueue<NSQCommand> requests = new LinkedBlockingQueue<>(1);
-    private final LinkedBlockingQueue<NSQFrame> responses = new LinkedBlockingQueue<>(1);
+    /**
+     * Commands waiting for their response, in the order they were written on the channel.
+     * nsqd answers in order, so each OK or error frame completes the head of this queue.
+     */
+    private final Queue<CompletableFuture<NSQFrame>> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // only used on the event loop of the channel
+    private int unflushed = 0;
+    private boolean flushScheduled = false;
+    private final AtomicInteger readyRemaining = new AtomicInteger();
+    private volatile int readyCount = 0;
+    private volatile int targetReady = 0;
     private static EventLoopGroup defaultGroup = null;
-    private final EventLoopGroup eventLoopGroup;
+    private static EventLoopGroup defaultEpollGroup = null;
+    private static boolean epollUnavailable = false;
+    private static final AtomicInteger IDS = new AtomicInteger();
     private final NSQConfig config;
+    private final String metricsPrefix;
+    private final Counter received;
+    private final Counter finished;
+    private final Counter requeued;
 
     private final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(Connection.class);
 
     public Connection(final ServerAddress serverAddress, final NSQConfig config) throws NoConnectionsException {
-        this.address = serverAddress;
-        this.config = config;
-        final Bootstrap bootstrap = new Bootstrap();
-        eventLoopGroup = config.getEventLoopGroup() != null ? config.getEventLoopGroup() : getDefaultGroup();
-        bootstrap.group(eventLoopGroup);
-        bootstrap.channel(NioSocketChannel.class);
-        bootstrap.handler(new NSQClientInitializer());
-        // Start the connection attempt.
-        final ChannelFuture future = bootstrap.connect(new InetSocketAddress(serverAddress.getHost(),
-                serverAddress.getPort()));
-
-        // Wait until the connection attempt succeeds or fails.
-        channel = future.awaitUninterruptibly().channel();
-        if (!future.isSuccess()) {
-            throw new NoConnectionsException("Could not connect to server", future.cause());
-        }
-        LOGGER.info("Created connection: {}", serverAddress);
-        this.channel.attr(STATE).set(this);
-        final ByteBuf buf = Unpooled.buffer();
-        buf.writeBytes(MAGIC_PROTOCOL_VERSION);
-        channel.write(buf);
-        channel.flush();
+        this(serverAddress, config, awaitConnected(serverAddress, config));
 
         //indentify
-        final NSQCommand ident = NSQCommand.instance("IDENTIFY", config.toString().getBytes());
+        final NSQCommand ident = NSQCommand.identify(config.toString().getBytes());
         try {
             final NSQFrame response = commandAndWait(ident);
             if (response != null) {
-                LOGGER.info("Server identification: {}", ((ResponseFrame) response).getMessage());
+                LOGGER.info("Server identification: {}", response);
             }
         } catch (final TimeoutException e) {
             LOGGER.error("Creating connection timed out", e);
@@ -78,19 +90,132 @@ public class Connection {
         }
     }
 
-    private EventLoopGroup getDefaultGroup() {
+    /**
+     * Wraps a channel that is already connected, the tests use it with an embedded channel.
+     */
+    Connection(final ServerAddress serverAddress, final NSQConfig config, final Channel channel) {
+        this.address = serverAddress;
+        this.config = config;
+        this.channel = channel;
+        LOGGER.info("Created connection: {}", serverAddress);
+        final MetricsRegistry metrics = config.getMetricsRegistry();
+        this.metricsPrefix = "nsq.connection." + serverAddress + "." + IDS.incrementAndGet() + ".";
+        this.received = metrics.counter(metricsPrefix + "received");
+        this.finished = metrics.counter(metricsPrefix + "finished");
+        this.requeued = metrics.counter(metricsPrefix + "requeued");
+        if (metrics != NoopMetricsRegistry.INSTANCE) {
+            metrics.gauge(metricsPrefix + "rdy", () -> readyCount);
+            metrics.gauge(metricsPrefix + "in_flight", inFlight::get);
+            channel.pipeline().addFirst("MetricsHandler", new NSQMetricsHandler(
+                    metrics.counter(metricsPrefix + "bytes.in"), metrics.counter(metricsPrefix + "bytes.out")));
+        }
+        this.channel.attr(STATE).set(this);
+        this.channel.closeFuture().addListener(f -> {
+            failPending(new DisconnectedException("Connection to " + serverAddress + " closed", f.cause()));
+            removeMetrics(metrics);
+        });
+        final ByteBuf buf = channel.alloc().buffer(MAGIC_PROTOCOL_VERSION.length);
+        buf.writeBytes(MAGIC_PROTOCOL_VERSION);
+        channel.write(buf);
+        channel.flush();
+    }
+
+    /**
+     * Connects to nsqd without blocking the calling thread. The returned future completes once the connection
+     * is established, identified and the negotiated features (TLS, compression) are set up, or fails with a
+     * {@link NoConnectionsException} if any step fails or takes longer than the connect timeout of the config.
+     */
+    public static CompletableFuture<Connection> connectAsync(final ServerAddress serverAddress, final NSQConfig config) {
+        final CompletableFuture<Connection> result = new CompletableFuture<>();
+        connect(serverAddress, config).addListener((ChannelFuture future) -> {
+            if (!future.isSuccess()) {
+                result.completeExceptionally(new NoConnectionsException("Could not connect to server " + serverAddress,
+                        future.cause()));
+                return;
+            }
+            final Connection connection = new Connection(serverAddress, config, future.channel());
+            final ScheduledFuture<?> timeout = future.channel().eventLoop().schedule(() -> {
+                if (result.completeExceptionally(new NoConnectionsException("Identification timed out on " + serverAddress))) {
+                    connection.close();
+                }
+            }, config.getConnectTimeoutMillis(), TimeUnit.MILLISECONDS);
+            connection.commandAsync(NSQCommand.identify(config.toString().getBytes())).whenComplete((response, error) -> {
+                timeout.cancel(false);
+                if (error != null || response instanceof ErrorFrame) {
+                    if (result.completeExceptionally(new NoConnectionsException("Could not identify on " + serverAddress,
+                            error != null ? error : NSQException.of((ErrorFrame) response)))) {
+                        connection.close();
+                    }
+                    return;
+                }
+                LoggerFactory.getLogger(Connection.class).info("Server identification: {}", response);
+                result.complete(connection);
+            });
+        });
+        return result;
+    }
+
+    private static Channel awaitConnected(final ServerAddress serverAddress, final NSQConfig config)
+            throws NoConnectionsException {
+        final ChannelFuture future = connect(serverAddress, config);
+        // Wait until the connection attempt succeeds or fails.
+        if (!future.awaitUninterruptibly().isSuccess()) {
+            throw new NoConnectionsException("Could not connect to server", future.cause());
+        }
+        return future.channel();
+    }
+
+    private static ChannelFuture connect(final ServerAddress serverAddress, final NSQConfig config) {
+        final Bootstrap bootstrap = new Bootstrap();
+        final EventLoopGroup eventLoopGroup = getEventLoopGroup(config);
+        bootstrap.group(eventLoopGroup);
+        bootstrap.channel(eventLoopGroup instanceof EpollEventLoopGroup ? EpollSocketChannel.class : NioSocketChannel.class);
+        bootstrap.option(ChannelOption.ALLOCATOR, config.getAllocator());
+        bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, config.getConnectTimeoutMillis());
+        bootstrap.handler(new NSQClientInitializer());
+        // Start the connection attempt.
+        return bootstrap.connect(new InetSocketAddress(serverAddress.getHost(), serverAddress.getPort()));
+    }
+
+    /**
+     * @return the event loop group the connections made with this config use
+     */
+    static EventLoopGroup getEventLoopGroup(final NSQConfig config) {
+        return config.getEventLoopGroup() != null ? config.getEventLoopGroup() : getDefaultGroup(config.getTransport());
+    }
+
+    private static synchronized EventLoopGroup getDefaultGroup(final NSQConfig.Transport transport) {
+        if (transport == NSQConfig.Transport.EPOLL && defaultEpollGroup == null && !epollUnavailable) {
+            try {
+                if (Epoll.isAvailable()) {
+                    defaultEpollGroup = new EpollEventLoopGroup();
+                } else {
+                    epollUnavailable(Epoll.unavailabilityCause());
+                }
+            } catch (final RuntimeException | LinkageError e) {
+                epollUnavailable(e);
+            }
+        }
+        if (transport == NSQConfig.Transport.EPOLL && defaultEpollGroup != null) {
+            return defaultEpollGroup;
+        }
         if (defaultGroup == null) {
             defaultGroup = new NioEventLoopGroup();
         }
         return defaultGroup;
     }
 
+    private static void epollUnavailable(final Throwable cause) {
+        epollUnavailable = true;
+        LoggerFactory.getLogger(Connection.class).warn("Native epoll is not available, falling back to NIO", cause);
+    }
+
     public boolean isConnected() {
         return channel.isActive();
     }
 
     public boolean isRequestInProgress() {
-        return requests.size() > 0;
+        return !pending.isEmpty();
     }
 
     public void incoming(final NSQFrame frame) {
@@ -99,14 +224,7 @@ public class Connection {
                 heartbeat();
                 return;
             } else {
-                if (!requests.isEmpty()) {
-                    try {
-                        responses.offer(frame, 20, TimeUnit.SECONDS);
-                    } catch (final InterruptedException e) {
-                        LOGGER.error("Thread was interruped, probably shuthing down", e);
-                        close();
-                    }
-                }
+                completePending(frame);
                 return;
             }
         }
@@ -115,18 +233,26 @@ public class Connection {
             if (errorCallback != null) {
                 errorCallback.error(NSQException.of((ErrorFrame) frame));
             }
-            responses.add(frame);
+            if (isResponseToCommand((ErrorFrame) frame)) {
+                completePending(frame);
+            }
             return;
         }
 
         if (frame instanceof MessageFrame) {
             final MessageFrame msg = (MessageFrame) frame;
+            if (consumer == null) {
+                LOGGER.warn("No consumer for connection {}, dropping message", this);
+                msg.getMessageBuffer().release();
+                return;
+            }
 
+            received.increment();
             final NSQMessage message = new NSQMessage();
             message.setAttempts(msg.getAttempts());
             message.setConnection(this);
-            message.setId(msg.getMessageId());
-            message.setMessage(msg.getMessageBody());
+            message.setMessageId(msg.getId());
+            message.setMessageBuffer(msg.getMessageBuffer());
             message.setTimestamp(new Date(TimeUnit.NANOSECONDS.toMillis(msg.getTimestamp())));
             consumer.processMessage(message);
             return;
@@ -135,9 +261,39 @@ public class Connection {
     }
 
 
+    private void completePending(final NSQFrame frame) {
+        final CompletableFuture<NSQFrame> future = pending.poll();
+        if (future != null) {
+            future.complete(frame);
+        }
+    }
+
+    /**
+     * FIN, REQ and TOUCH never get a success response, so their failures must not be matched
+     * against a pending command.
+     */
+    private boolean isResponseToCommand(final ErrorFrame frame) {
+        final String err = frame.getErrorMessage();
+        return !(err.startsWith("E_FIN_FAILED") || err.startsWith("E_REQ_FAILED") || err.startsWith("E_TOUCH_FAILED"));
+    }
+
+    private void failPending(final Throwable cause) {
+        CompletableFuture<NSQFrame> future;
+        while ((future = pending.poll()) != null) {
+            future.completeExceptionally(cause);
+        }
+    }
+
+    private void removeMetrics(final MetricsRegistry metrics) {
+        for (final String name : new String[]{"received", "finished", "requeued", "rdy", "in_flight", "bytes.in",
+                "bytes.out"}) {
+            metrics.remove(metricsPrefix + name);
+        }
+    }
+
     private void heartbeat() {
         LOGGER.trace("HEARTBEAT!");
-        command(NSQCommand.instance("NOP"));
+        command(NSQCommand.nop());
     }
 
     public void setErrorCallback(final NSQErrorCallback callback) {
@@ -146,38 +302,166 @@ public class Connection {
 
     public void close() {
         LOGGER.info("Closing  connection: {}", this);
+        channel.flush();
         channel.disconnect();
     }
 
     public NSQFrame commandAndWait(final NSQCommand command) throws TimeoutException {
         try {
-            if (!requests.offer(command, 15, TimeUnit.SECONDS)) {
-                throw new TimeoutException("command: " + command + " timedout");
-            }
+            return commandAsync(command).get(15, TimeUnit.SECONDS);
+        } catch (final TimeoutException e) {
+            throw new TimeoutException("command: " + command + " timedout");
+        } catch (final ExecutionException e) {
+            LOGGER.warn("command: {} failed", command, e.getCause());
+        } catch (final InterruptedException e) {
+            close();
+            LOGGER.warn("Thread was interruped!", e);
+        }
+        return null;
+    }
 
-            responses.clear(); //clear the response queue if needed.
-            final ChannelFuture fut = command(command);
+    /**
+     * Writes a command expecting a response without waiting for it, so many commands can be in flight
+     * on the same connection. The returned future completes with the matching response or error frame,
+     * or exceptionally if the connection is lost before it arrives.
+     */
+    public CompletableFuture<NSQFrame> commandAsync(final NSQCommand command) {
+        final CompletableFuture<NSQFrame> future = new CompletableFuture<>();
+        // the future is queued by the task writing the command, so that the queue keeps the order of the writes
+        final Runnable send = () -> {
+            pending.add(future);
+            command(command).addListener(f -> {
+                if (!f.isSuccess() && pending.remove(future)) {
+                    future.completeExceptionally(new DisconnectedException("Could not send " + command, f.cause()));
+                }
+            });
+        };
+        if (channel.eventLoop().inEventLoop()) {
+            send.run();
+        } else {
+            try {
+                channel.eventLoop().execute(send);
+            } catch (final RejectedExecutionException e) {
+                future.completeExceptionally(new DisconnectedException("Could not send " + command, e));
+            }
+        }
+        return future;
+    }
 
-            if (!fut.await(15, TimeUnit.SECONDS)) {
-                throw new TimeoutException("command: " + command + " timedout");
+    /**
+     * Writes a command, the flush is shared with the commands written around it, see
+     * {@link NSQConfig#setMaxUnflushedWrites(int)}.
+     */
+    public ChannelFuture command(final NSQCommand command) {
+        if (config.getMaxUnflushedWrites() <= 1) {
+            return channel.writeAndFlush(command);
+        }
+        final ChannelPromise promise = channel.newPromise();
+        if (channel.eventLoop().inEventLoop()) {
+            write(command, promise);
+        } else {
+            try {
+                channel.eventLoop().execute(() -> write(command, promise));
+            } catch (final RejectedExecutionException e) {
+                promise.setFailure(e);
             }
+        }
+        return promise;
+    }
 
-            final NSQFrame frame = responses.poll(15, TimeUnit.SECONDS);
-            if (frame == null) {
-                throw new TimeoutException("command: " + command + " timedout");
+    /**
+     * Writes commands that expect no response, such as FIN or REQ, and flushes them once.
+     */
+    void commandAll(final List<NSQCommand> commands) {
+        final Runnable write = () -> {
+            for (final NSQCommand command : commands) {
+                channel.write(command, channel.voidPromise());
             }
+            flush();
+        };
+        if (channel.eventLoop().inEventLoop()) {
+            write.run();
+        } else {
+            try {
+                channel.eventLoop().execute(write);
+            } catch (final RejectedExecutionException e) {
+                LOGGER.warn("Could not send {} commands, the connection is closed", commands.size());
+            }
+        }
+    }
 
-            requests.poll(); //clear the request object
-            return frame;
-        } catch (final InterruptedException e) {
-            close();
-            LOGGER.warn("Thread was interruped!", e);
+    private void write(final NSQCommand command, final ChannelPromise promise) {
+        channel.write(command, promise);
+        if (++unflushed >= config.getMaxUnflushedWrites()) {
+            flush();
+        } else if (!flushScheduled) {
+            // the flush task is queued behind the writes, so it sends them all at once
+            flushScheduled = true;
+            final long delay = config.getFlushDelayMicros();
+            if (delay == 0) {
+                channel.eventLoop().execute(this::flush);
+            } else {
+                channel.eventLoop().schedule(this::flush, delay, TimeUnit.MICROSECONDS);
+            }
         }
-        return null;
     }
 
-    public ChannelFuture command(final NSQCommand command) {
-        return channel.writeAndFlush(command);
+    private void flush() {
+        flushScheduled = false;
+        unflushed = 0;
+        channel.flush();
+    }
+
+    /**
+     * Sends RDY to nsqd, the number of messages it may have in flight on this connection.
+     */
+    public void ready(final int count) {
+        readyCount = count;
+        readyRemaining.set(count);
+        command(NSQCommand.ready(count));
+    }
+
+    /**
+     * @return the last RDY count sent to nsqd
+     */
+    public int getReadyCount() {
+        return readyCount;
+    }
+
+    /**
+     * @return the number of messages received and not yet finished or requeued
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    int getTargetReady() {
+        return targetReady;
+    }
+
+    void setTargetReady(final int targetReady) {
+        this.targetReady = targetReady;
+    }
+
+    /**
+     * @return the RDY count left since the last RDY was sent
+     */
+    int messageReceived() {
+        inFlight.incrementAndGet();
+        return readyRemaining.decrementAndGet();
+    }
+
+    void messageCompleted() {
+        inFlight.decrementAndGet();
+    }
+
+    void messageFinished(final boolean requeue) {
+        (requeue ? requeued : finished).increment();
+        if (consumer != null) {
+            consumer.messageCompleted(this);
+        } else {
+            messageCompleted();
+        }
     }
 
     public ServerAddress getServerAddress() {
@@ -0,0 +1,101 @@
+package fr.vsct.dt.nsq;
+
+import org.slf4j.Logger;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed number of connections to one nsqd, shared by all the publishing threads. Requests are pipelined and
+ * the connections are used in turn. A connection is established on first use, and again once it is lost.
+ */
+class ConnectionSet {
+    private final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(ConnectionSet.class);
+
+    private final ServerAddress address;
+    private final NSQConfig config;
+    private final AtomicReferenceArray<CompletableFuture<Connection>> slots;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    ConnectionSet(final ServerAddress address, final NSQConfig config, final int size) {
+        this.address = address;
+        this.config = config;
+        this.slots = new AtomicReferenceArray<>(size);
+    }
+
+    /**
+     * @return the next connection, which may still be connecting
+     */
+    CompletableFuture<Connection> get() {
+        final int slot = Math.floorMod(next.getAndIncrement(), slots.length());
+        final CompletableFuture<Connection> connection = slots.get(slot);
+        if (connection != null && isUsable(connection)) {
+            return connection;
+        }
+        return reconnect(slot, connection);
+    }
+
+    /**
+     * Replaces the connection of a slot, unless another thread already did.
+     */
+    private CompletableFuture<Connection> reconnect(final int slot, final CompletableFuture<Connection> expected) {
+        final CompletableFuture<Connection> connection = new CompletableFuture<>();
+        if (!slots.compareAndSet(slot, expected, connection)) {
+            return slots.get(slot);
+        }
+        Connection.connectAsync(address, config).whenComplete((c, error) -> {
+            if (error != null) {
+                connection.completeExceptionally(error);
+            } else if (closed) {
+                c.close();
+                connection.completeExceptionally(new IllegalStateException("Producer was shut down"));
+            } else {
+                connection.complete(c);
+            }
+        });
+        return connection;
+    }
+
+    private static boolean isUsable(final CompletableFuture<Connection> connection) {
+        if (!connection.isDone()) {
+            return true;
+        }
+        return !connection.isCompletedExceptionally() && connection.join().isConnected();
+    }
+
+    /**
+     * Sends a NOP on every connection, so that dead sockets are detected before a publish uses them, and
+     * reconnects the connections which were lost.
+     */
+    void checkHealth() {
+        for (int slot = 0; slot < slots.length(); slot++) {
+            final CompletableFuture<Connection> connection = slots.get(slot);
+            if (closed || connection == null || !connection.isDone() || connection.isCompletedExceptionally()) {
+                continue;
+            }
+            final Connection c = connection.join();
+            if (c.isConnected()) {
+                c.command(NSQCommand.nop()).addListener(f -> {
+                    if (!f.isSuccess()) {
+                        LOGGER.warn("Health check of {} failed", address, f.cause());
+                        c.close();
+                    }
+                });
+            } else {
+                reconnect(slot, connection);
+            }
+        }
+    }
+
+    void close() {
+        closed = true;
+        for (int slot = 0; slot < slots.length(); slot++) {
+            final CompletableFuture<Connection> connection = slots.get(slot);
+            if (connection != null) {
+                connection.thenAccept(Connection::close);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package fr.vsct.dt.nsq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects messages per topic and publishes them as MPUB when the size, count or linger limit
+ * of the {@link BatchConfig} is reached. Every message keeps its own completion.
+ */
+class MessageBatcher {
+    private final NSQProducer producer;
+    private final BatchConfig config;
+    private final ConcurrentMap<String, Batch> batches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "nsq-producer-linger");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    MessageBatcher(final NSQProducer producer, final BatchConfig config) {
+        this.producer = producer;
+        this.config = config;
+    }
+
+    CompletableFuture<Void> add(final String topic, final byte[] message) {
+        return batches.computeIfAbsent(topic, Batch::new).add(message);
+    }
+
+    /**
+     * Sends all pending batches, the returned future completes once nsqd acknowledged them.
+     */
+    CompletableFuture<Void> flush() {
+        final List<CompletableFuture<Void>> sent = new ArrayList<>();
+        for (final Batch batch : batches.values()) {
+            sent.add(batch.flush());
+        }
+        return CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[sent.size()]));
+    }
+
+    CompletableFuture<Void> close() {
+        scheduler.shutdown();
+        return flush();
+    }
+
+    private class Batch {
+        private final String topic;
+        private List<byte[]> messages = new ArrayList<>();
+        private List<CompletableFuture<Void>> futures = new ArrayList<>();
+        private int bytes = 0;
+        private ScheduledFuture<?> linger;
+
+        Batch(final String topic) {
+            this.topic = topic;
+        }
+
+        CompletableFuture<Void> add(final byte[] message) {
+            final CompletableFuture<Void> future = new CompletableFuture<>();
+            Runnable full = null;
+            Runnable overflow = null;
+            synchronized (this) {
+                final int size = message.length + 4; // every message is prefixed by its size
+                if (!messages.isEmpty() && bytes + size > config.getMaxBytes()) {
+                    overflow = take();
+                }
+                messages.add(message);
+                futures.add(future);
+                bytes += size;
+                if (messages.size() >= config.getMaxMessages() || bytes >= config.getMaxBytes()) {
+                    full = take();
+                } else if (messages.size() == 1) {
+                    linger = scheduler.schedule(this::flush, config.getLingerMillis(), TimeUnit.MILLISECONDS);
+                }
+            }
+            // publishing may wait for a connection, never do it while holding the batch
+            if (overflow != null) {
+                overflow.run();
+            }
+            if (full != null) {
+                full.run();
+            }
+            return future;
+        }
+
+        CompletableFuture<Void> flush() {
+            final CompletableFuture<Void> done = new CompletableFuture<>();
+            final Runnable send;
+            synchronized (this) {
+                if (messages.isEmpty()) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                futures.add(done);
+                send = take();
+            }
+            send.run();
+            return done;
+        }
+
+        /**
+         * Detaches the pending messages, must be called while holding the batch.
+         */
+        private Runnable take() {
+            if (linger != null) {
+                linger.cancel(false);
+                linger = null;
+            }
+            final List<byte[]> toSend = messages;
+            final List<CompletableFuture<Void>> toComplete = futures;
+            messages = new ArrayList<>();
+            futures = new ArrayList<>();
+            bytes = 0;
+            return () -> {
+                CompletableFuture<Void> sent;
+                try {
+                    sent = producer.publishMulti(topic, toSend);
+                } catch (final RuntimeException e) {
+                    sent = new CompletableFuture<>();
+                    sent.completeExceptionally(e);
+                }
+                sent.whenComplete((v, error) -> {
+                    for (final CompletableFuture<Void> future : toComplete) {
+                        if (error != null) {
+                            future.completeExceptionally(error);
+                        } else {
+                            future.complete(null);
+                        }
+                    }
+                });
+            };
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package fr.vsct.dt.nsq;
+
+import com.google.common.base.Preconditions;
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The 16 ASCII bytes identifying a message, kept as two longs so that it is read from and written to the network
+ * buffers without intermediate array nor String.
+ */
+public final class MessageId {
+    public static final int LENGTH = 16;
+
+    private final long high;
+    private final long low;
+
+    private MessageId(final long high, final long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * Reads an id at the reader index of the buffer, the reader index is advanced.
+     */
+    public static MessageId read(final ByteBuf buf) {
+        return new MessageId(buf.readLong(), buf.readLong());
+    }
+
+    public static MessageId of(final byte[] id) {
+        Preconditions.checkArgument(id.length == LENGTH, "message id must be %s bytes long", LENGTH);
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 8; i++) {
+            high = high << 8 | (id[i] & 0xff);
+            low = low << 8 | (id[i + 8] & 0xff);
+        }
+        return new MessageId(high, low);
+    }
+
+    public void writeTo(final ByteBuf buf) {
+        buf.writeLong(high);
+        buf.writeLong(low);
+    }
+
+    public byte[] getBytes() {
+        final byte[] bytes = new byte[LENGTH];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (high >>> (56 - 8 * i));
+            bytes[i + 8] = (byte) (low >>> (56 - 8 * i));
+        }
+        return bytes;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MessageId)) {
+            return false;
+        }
+        final MessageId other = (MessageId) o;
+        return high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(high) + Long.hashCode(low);
+    }
+
+    @Override
+    public String toString() {
+        return new String(getBytes(), StandardCharsets.US_ASCII);
+    }
+}
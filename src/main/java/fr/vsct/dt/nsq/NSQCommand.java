@@ -1,46 +1,199 @@
 package fr.vsct.dt.nsq;
 
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
 public class NSQCommand {
 
+	private static final byte[] IDENTIFY = ascii("IDENTIFY");
+	private static final byte[] SUB = ascii("SUB");
+	private static final byte[] PUB = ascii("PUB");
+	private static final byte[] MPUB = ascii("MPUB");
+	private static final byte[] DPUB = ascii("DPUB");
+	private static final byte[] RDY = ascii("RDY");
+	private static final byte[] FIN = ascii("FIN");
+	private static final byte[] REQ = ascii("REQ");
+	private static final byte[] TOUCH = ascii("TOUCH");
+	private static final byte[] CLS = ascii("CLS");
+	private static final byte[] NOP = ascii("NOP");
+
+	private static final Object[] NO_PARAMS = new Object[0];
+
 	public static NSQCommand instance(String line) {
 		NSQCommand n = new NSQCommand();
 		n.setLine(line);
 		return n;
 	}
-	
+
 	public static NSQCommand instance(String line, byte[] bytes) {
 		NSQCommand n = instance(line);
 		n.addBytes(bytes);
 		return n;
 	}
-	
+
+	public static NSQCommand identify(byte[] body) {
+		return of(IDENTIFY).withBody(body);
+	}
+
+	public static NSQCommand subscribe(String topic, String channel) {
+		return of(SUB, topic, channel);
+	}
+
+	public static NSQCommand publish(String topic, byte[] message) {
+		return of(PUB, topic).withBody(message);
+	}
+
+	/**
+	 * Publishes a message already serialized in a network buffer, the command owns the buffer until it is encoded.
+	 */
+	public static NSQCommand publish(String topic, ByteBuf message) {
+		NSQCommand n = of(PUB, topic);
+		n.body = message;
+		return n;
+	}
+
+	/**
+	 * Publishes a message which nsqd delivers to the consumers after deferMillis.
+	 */
+	public static NSQCommand deferredPublish(String topic, byte[] message, int deferMillis) {
+		return of(DPUB, topic, deferMillis).withBody(message);
+	}
+
+	public static NSQCommand multiPublish(String topic, List<byte[]> messages) {
+		NSQCommand n = of(MPUB, topic);
+		n.setData(messages);
+		return n;
+	}
+
+	public static NSQCommand ready(int count) {
+		return of(RDY, count);
+	}
+
+	public static NSQCommand finish(MessageId messageId) {
+		return of(FIN, messageId);
+	}
+
+	public static NSQCommand finish(byte[] messageId) {
+		return of(FIN, messageId);
+	}
+
+	public static NSQCommand requeue(MessageId messageId, int timeoutMillis) {
+		return of(REQ, messageId, timeoutMillis);
+	}
+
+	public static NSQCommand requeue(byte[] messageId, int timeoutMillis) {
+		return of(REQ, messageId, timeoutMillis);
+	}
+
+	public static NSQCommand touch(MessageId messageId) {
+		return of(TOUCH, messageId);
+	}
+
+	public static NSQCommand touch(byte[] messageId) {
+		return of(TOUCH, messageId);
+	}
+
+	public static NSQCommand startClose() {
+		return of(CLS);
+	}
+
+	public static NSQCommand nop() {
+		return of(NOP);
+	}
+
+	private static NSQCommand of(byte[] name, Object... params) {
+		NSQCommand n = new NSQCommand();
+		n.name = name;
+		n.params = params;
+		return n;
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
 	String line;
+	// pre-encoded command name and its parameters, the line is only built when needed
+	private byte[] name;
+	private Object[] params = NO_PARAMS;
 	List<byte[]> data = new ArrayList<>();
-	
+	private ByteBuf body;
+
+	private NSQCommand withBody(byte[] bytes) {
+		addBytes(bytes);
+		return this;
+	}
+
 	public void addBytes(byte[] bytes) {
 		data.add(bytes);
 	}
-	
+
 	public String getLine() {
+		if (line == null) {
+			StringBuilder builder = new StringBuilder(new String(name, StandardCharsets.US_ASCII));
+			for (Object param : params) {
+				builder.append(' ');
+				builder.append(param instanceof byte[] ? new String((byte[]) param, StandardCharsets.US_ASCII) : param);
+			}
+			line = builder.append('\n').toString();
+		}
 		return line;
 	}
 	public void setLine(String line) {
 		if (!line.endsWith("\n")) {
 			line = line +"\n";
 		}
-		
+
 		this.line = line;
+		this.name = null;
+		this.params = NO_PARAMS;
+	}
+
+	/**
+	 * @return the pre-encoded command name, or null when the command was built from a free-form line
+	 */
+	public byte[] getName() {
+		return name;
+	}
+
+	/**
+	 * @return the parameters following the name, each one is a byte[], a {@link MessageId}, a CharSequence or a Number
+	 */
+	public Object[] getParams() {
+		return params;
 	}
+
+	/**
+	 * Hands the serialized body over to the caller, which must release it.
+	 *
+	 * @return the serialized body, or null if there is none or it was already taken
+	 */
+	public synchronized ByteBuf takeBody() {
+		ByteBuf b = body;
+		body = null;
+		return b;
+	}
+
+	/**
+	 * Releases the serialized body of a command which could not be written.
+	 */
+	public void releaseBody() {
+		ByteBuf b = takeBody();
+		if (b != null) {
+			b.release();
+		}
+	}
+
 	public List<byte[]> getData() {
 		return data;
 	}
 	public void setData(List<byte[]> data) {
 		this.data = data;
 	}
-	
+
 	public String toString() {
         return this.getLine().trim();
     }
@@ -1,6 +1,10 @@
 package fr.vsct.dt.nsq;
 
 import com.google.common.base.Preconditions;
+import fr.vsct.dt.nsq.metrics.MetricsRegistry;
+import fr.vsct.dt.nsq.metrics.NoopMetricsRegistry;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.EventLoopGroup;
 import io.netty.handler.ssl.SslContext;
 import org.slf4j.Logger;
@@ -14,6 +18,11 @@ public class NSQConfig {
 
     public enum Compression {NO_COMPRESSION, DEFLATE, SNAPPY}
 
+    /**
+     * Network transport, EPOLL falls back to NIO when native epoll is not available on the host.
+     */
+    public enum Transport {NIO, EPOLL}
+
     private String clientId;
     private String hostname;
     private boolean featureNegotiation = true;
@@ -28,6 +37,12 @@ public class NSQConfig {
     private Integer msgTimeout = null;
     private SslContext sslContext = null;
     private EventLoopGroup eventLoopGroup = null;
+    private ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+    private Transport transport = Transport.NIO;
+    private int connectTimeoutMillis = 15000;
+    private int maxUnflushedWrites = 32;
+    private long flushDelayMicros = 0;
+    private MetricsRegistry metricsRegistry = NoopMetricsRegistry.INSTANCE;
 
     public NSQConfig() {
         try {
@@ -138,6 +153,109 @@ public class NSQConfig {
         this.eventLoopGroup = eventLoopGroup;
     }
 
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    /**
+     * Timeout of the TCP connection to nsqd and of the IDENTIFY handshake that follows it.
+     */
+    public void setConnectTimeoutMillis(final int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public int getMaxUnflushedWrites() {
+        return maxUnflushedWrites;
+    }
+
+    /**
+     * Commands are written to the socket buffer right away but flushed together: once the event loop has run the
+     * pending writes, after the flush delay, or as soon as this many commands are waiting. 1 flushes every command.
+     */
+    public void setMaxUnflushedWrites(final int maxUnflushedWrites) {
+        Preconditions.checkArgument(maxUnflushedWrites >= 1, "maxUnflushedWrites must be at least 1");
+        this.maxUnflushedWrites = maxUnflushedWrites;
+    }
+
+    public long getFlushDelayMicros() {
+        return flushDelayMicros;
+    }
+
+    /**
+     * How long a written command may wait for others before being flushed, 0 flushes once per event loop run.
+     */
+    public void setFlushDelayMicros(final long flushDelayMicros) {
+        Preconditions.checkArgument(flushDelayMicros >= 0, "flushDelayMicros must not be negative");
+        this.flushDelayMicros = flushDelayMicros;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Transport used with the default event loop group. When an event loop group is set, the channel type is
+     * picked to match it.
+     */
+    public void setTransport(final Transport transport) {
+        Preconditions.checkNotNull(transport);
+        this.transport = transport;
+    }
+
+    public ByteBufAllocator getAllocator() {
+        return allocator;
+    }
+
+    /**
+     * Allocator of the network buffers, pooled by default. With a pooled allocator, consumed messages hold pooled
+     * memory until they are finished, requeued or released.
+     */
+    public void setAllocator(final ByteBufAllocator allocator) {
+        Preconditions.checkNotNull(allocator);
+        this.allocator = allocator;
+    }
+
+    public MetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
+    }
+
+    /**
+     * Registry receiving the metrics of the connections, producers and consumers using this config. Metrics are
+     * discarded by default.
+     */
+    public void setMetricsRegistry(final MetricsRegistry metricsRegistry) {
+        Preconditions.checkNotNull(metricsRegistry);
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    /**
+     * @return a config with the same settings, which can be changed without affecting this one
+     */
+    NSQConfig copy() {
+        final NSQConfig copy = new NSQConfig();
+        copy.clientId = clientId;
+        copy.hostname = hostname;
+        copy.featureNegotiation = featureNegotiation;
+        copy.heartbeatInterval = heartbeatInterval;
+        copy.outputBufferSize = outputBufferSize;
+        copy.outputBufferTimeout = outputBufferTimeout;
+        copy.tlsV1 = tlsV1;
+        copy.compression = compression;
+        copy.deflateLevel = deflateLevel;
+        copy.sampleRate = sampleRate;
+        copy.userAgent = userAgent;
+        copy.msgTimeout = msgTimeout;
+        copy.sslContext = sslContext;
+        copy.eventLoopGroup = eventLoopGroup;
+        copy.allocator = allocator;
+        copy.transport = transport;
+        copy.connectTimeoutMillis = connectTimeoutMillis;
+        copy.maxUnflushedWrites = maxUnflushedWrites;
+        copy.flushDelayMicros = flushDelayMicros;
+        copy.metricsRegistry = metricsRegistry;
+        return copy;
+    }
+
     @Override
     public String toString() {
         StringBuffer buffer = new StringBuffer();
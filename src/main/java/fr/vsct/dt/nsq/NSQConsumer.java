@@ -2,20 +2,23 @@ package fr.vsct.dt.nsq;
 
 import fr.vsct.dt.nsq.callbacks.NSQErrorCallback;
 import fr.vsct.dt.nsq.callbacks.NSQMessageCallback;
-import fr.vsct.dt.nsq.exceptions.NoConnectionsException;
+import fr.vsct.dt.nsq.executor.BoundedExecutor;
+import fr.vsct.dt.nsq.executor.StripedExecutor;
+import fr.vsct.dt.nsq.executor.VirtualThreads;
 import fr.vsct.dt.nsq.frames.ErrorFrame;
 import fr.vsct.dt.nsq.frames.NSQFrame;
 import fr.vsct.dt.nsq.lookup.NSQLookup;
+import fr.vsct.dt.nsq.metrics.Counter;
+import fr.vsct.dt.nsq.metrics.Histogram;
+import fr.vsct.dt.nsq.metrics.MetricsRegistry;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import org.slf4j.Logger;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.Date;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -25,6 +28,7 @@ import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 public class NSQConsumer implements Closeable {
     private final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(NSQConsumer.class);
@@ -35,16 +39,25 @@ public class NSQConsumer implements Closeable {
     private final NSQMessageCallback callback;
     private final NSQErrorCallback errorCallback;
     private final NSQConfig config;
-    private volatile long nextTimeout = 0;
-    private final Map<ServerAddress, Connection> connections = Maps.newHashMap();
+    private final Map<ServerAddress, Connection> connections = Maps.newConcurrentMap();
+    private final Set<ServerAddress> connecting = Sets.newConcurrentHashSet();
     private final AtomicLong totalMessages = new AtomicLong(0l);
 
-    private boolean started = false;
-    private int messagesPerBatch = 200;
+    private volatile boolean started = false;
+    private int maxInFlight = 200;
     private long lookupPeriod = 60 * 1000; // how often to recheck for new nodes (and clean up non responsive nodes)
+    private long rdyRedistributePeriod = 5 * 1000; // how often RDY is rotated when there are more nodes than max in flight
+    private long backoffMillis = 500;
     private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
     private ExecutorService executor = Executors.newCachedThreadPool();
-    private Optional<ScheduledFuture<?>> timeout = Optional.empty();
+    private Function<NSQMessage, ?> keyExtractor = null;
+    private boolean virtualThreads = false;
+    private Runnable completionListener = null;
+    private NSQConsumerRuntime runtime = null;
+    private ScheduledFuture<?> redistributeTask;
+    private RdyController rdyController;
+    private Histogram callbackTime;
+    private Counter reconnects;
 
     public NSQConsumer(final NSQLookup lookup, final String topic, final String channel, final NSQMessageCallback callback) {
         this(lookup, topic, channel, callback, new NSQConfig());
@@ -69,89 +82,152 @@ public class NSQConsumer implements Closeable {
     public NSQConsumer start() {
         if (!started) {
             started = true;
+            if (virtualThreads) {
+                executor = new BoundedExecutor(VirtualThreads.newExecutor(), maxInFlight);
+            }
+            final MetricsRegistry metrics = config.getMetricsRegistry();
+            final String prefix = metricsPrefix();
+            callbackTime = metrics.histogram(prefix + "callback");
+            reconnects = metrics.counter(prefix + "reconnects");
+            metrics.gauge(prefix + "connections", connections::size);
+            metrics.gauge(prefix + "max_in_flight", () -> maxInFlight);
+            rdyController = new RdyController(scheduler, maxInFlight, backoffMillis, metrics.counter(prefix + "backoffs"));
+            if (runtime != null) {
+                // the runtime polls the lookup and may set max-in-flight
+                runtime.register(this);
+            }
             //connect once otherwise we might have to wait one lookupPeriod
-            connect();
-            scheduler.scheduleAtFixedRate(() -> {
-                connect();
-            }, lookupPeriod, lookupPeriod, TimeUnit.MILLISECONDS);
+            connect(lookupAddresses());
+            if (runtime == null) {
+                scheduler.scheduleAtFixedRate(() -> {
+                    connect(lookupAddresses());
+                }, lookupPeriod, lookupPeriod, TimeUnit.MILLISECONDS);
+            }
+            redistributeTask = scheduler.scheduleAtFixedRate(rdyController::redistribute,
+                    rdyRedistributePeriod, rdyRedistributePeriod, TimeUnit.MILLISECONDS);
         }
         return this;
     }
 
-    private Connection createConnection(final ServerAddress serverAddress) {
-        try {
-            final Connection connection = new Connection(serverAddress, config);
-
-            connection.setConsumer(this);
-            connection.setErrorCallback(errorCallback);
-            connection.command(NSQCommand.instance("SUB " + topic + " " + this.channel));
-            connection.command(NSQCommand.instance("RDY " + messagesPerBatch));
-
-            return connection;
-        } catch (final NoConnectionsException e) {
-            LOGGER.warn("Could not create connection to server {}", serverAddress.toString(), e.getMessage());
-            return null;
+    private void createConnection(final ServerAddress serverAddress) {
+        if (!connecting.add(serverAddress)) {
+            return; // a previous attempt is still in progress
         }
+        Connection.connectAsync(serverAddress, config).whenComplete((connection, error) -> {
+            try {
+                if (error != null) {
+                    LOGGER.warn("Could not create connection to server {}: {}", serverAddress, error.getMessage());
+                    return;
+                }
+                if (!started) {
+                    connection.close();
+                    return;
+                }
+                connection.setConsumer(this);
+                connection.setErrorCallback(errorCallback);
+                connection.command(NSQCommand.subscribe(topic, this.channel));
+                connections.put(serverAddress, connection);
+                rdyController.addConnection(connection);
+            } finally {
+                connecting.remove(serverAddress);
+            }
+        });
     }
 
     protected void processMessage(final NSQMessage message) {
+        rdyController.messageReceived(message.getConnection());
         if (callback == null) {
             LOGGER.warn("NO Callback, dropping message: {} ", message);
+            message.release();
         } else {
             try {
-                executor.execute(() -> callback.message(message));
-                if (nextTimeout > 0) {
-                    updateTimeout(message, -500);
+                final Runnable task = () -> {
+                    final long start = System.nanoTime();
+                    try {
+                        callback.message(message);
+                    } finally {
+                        // the network buffer must not outlive the callback, even if it throws, unless it was retained
+                        message.callbackReturned();
+                        callbackTime.record(System.nanoTime() - start);
+                    }
+                };
+                if (keyExtractor != null && executor instanceof StripedExecutor) {
+                    ((StripedExecutor) executor).execute(extractKey(message), task);
+                } else {
+                    executor.execute(task);
                 }
+                rdyController.success();
             } catch (RejectedExecutionException re) {
                 LOGGER.trace("Backing off");
                 message.requeue();
-                updateTimeout(message, 500);
+                rdyController.backoff();
             }
         }
+        totalMessages.incrementAndGet();
+    }
 
-        final long tot = totalMessages.incrementAndGet();
-        if (tot % messagesPerBatch > (messagesPerBatch / 2)) {
-            //request some more!
-            rdy(message, messagesPerBatch);
+    /**
+     * @return the key of the message, or null to process it without ordering when the extractor fails
+     */
+    private Object extractKey(final NSQMessage message) {
+        try {
+            return keyExtractor.apply(message);
+        } catch (final RuntimeException e) {
+            LOGGER.warn("Could not extract the key of message {}, processing it unordered", message.getMessageId(), e);
+            return null;
         }
     }
 
-    private void updateTimeout(final NSQMessage message, long change) {
-        rdy(message, 0);
-        LOGGER.trace("RDY 0! Halt Flow.");
-        if (timeout.isPresent()) {
-            timeout.get().cancel(true);
-        }
-        Date newTimeout = calculateTimeoutDate(change);
-        if (newTimeout != null) {
-            timeout = Optional.of(scheduler.schedule(() -> {
-                rdy(message, 1); // test the waters
-            }, 0, TimeUnit.MILLISECONDS));
+    void messageCompleted(final Connection connection) {
+        rdyController.messageCompleted(connection);
+        if (completionListener != null) {
+            completionListener.run();
         }
     }
 
-    private void rdy(final NSQMessage message, int size) {
-        message.getConnection().command(NSQCommand.instance("RDY " + size));
+    /**
+     * Called every time a message is finished or requeued.
+     */
+    void setCompletionListener(final Runnable completionListener) {
+        this.completionListener = completionListener;
     }
 
-    private Date calculateTimeoutDate(final long i) {
-        if (System.currentTimeMillis() - nextTimeout + i > 50) {
-            nextTimeout += i;
-            return new Date();
-        } else {
-            nextTimeout = 0;
-            return null;
+    /**
+     * @return the number of messages received and not yet finished or requeued, over all connections
+     */
+    int getInFlight() {
+        int inFlight = 0;
+        for (final Connection connection : connections.values()) {
+            inFlight += connection.getInFlight();
         }
+        return inFlight;
     }
 
     public void shutdown() {
-        scheduler.shutdown();
+        started = false;
+        if (runtime == null) {
+            scheduler.shutdown();
+        } else {
+            redistributeTask.cancel(false);
+            runtime.unregister(this);
+        }
         cleanClose();
+        if (virtualThreads) {
+            // the executor was created by the consumer, the running callbacks still complete
+            executor.shutdown();
+        }
+        final MetricsRegistry metrics = config.getMetricsRegistry();
+        for (final String name : new String[]{"callback", "reconnects", "backoffs", "connections", "max_in_flight"}) {
+            metrics.remove(metricsPrefix() + name);
+        }
+    }
+
+    private String metricsPrefix() {
+        return "nsq.consumer." + topic + "." + channel + ".";
     }
 
     private void cleanClose() {
-        final NSQCommand command = NSQCommand.instance("CLS");
+        final NSQCommand command = NSQCommand.startClose();
         try {
             for (final Connection connection : connections.values()) {
                 final NSQFrame frame = connection.commandAndWait(command);
@@ -167,9 +243,41 @@ public class NSQConsumer implements Closeable {
         }
     }
 
+    /**
+     * @deprecated the RDY count is now split across connections, use {@link #setMaxInFlight(int)}
+     */
+    @Deprecated
     public NSQConsumer setMessagesPerBatch(final int messagesPerBatch) {
+        return setMaxInFlight(messagesPerBatch);
+    }
+
+    /**
+     * Maximum number of messages in flight for this consumer, distributed over all the nsqd nodes it is
+     * connected to. When it is lower than the number of nodes, the nodes allowed to send messages are rotated.
+     * It can be changed while the consumer is running.
+     */
+    public NSQConsumer setMaxInFlight(final int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        if (started) {
+            rdyController.setMaxInFlight(maxInFlight);
+            if (virtualThreads) {
+                ((BoundedExecutor) executor).setMaxConcurrency(Math.max(1, maxInFlight));
+            }
+        }
+        return this;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Initial delay during which no message is requested after the executor rejected one.
+     * It doubles on consecutive rejections.
+     */
+    public NSQConsumer setBackoffMillis(final long backoffMillis) {
         if (!started) {
-            this.messagesPerBatch = messagesPerBatch;
+            this.backoffMillis = backoffMillis;
         }
         return this;
     }
@@ -182,14 +290,19 @@ public class NSQConsumer implements Closeable {
     }
 
 
-    private void connect() {
+    /**
+     * Connects to the new addresses of the topic and closes the connections to the nodes which are gone.
+     */
+    void connect(final Set<ServerAddress> newAddresses) {
         for (final Iterator<Map.Entry<ServerAddress, Connection>> it = connections.entrySet().iterator(); it.hasNext(); ) {
-            if (!it.next().getValue().isConnected()) {
+            final Connection connection = it.next().getValue();
+            if (!connection.isConnected()) {
+                reconnects.increment();
                 it.remove();
+                rdyController.removeConnection(connection);
             }
         }
 
-        final Set<ServerAddress> newAddresses = lookupAddresses();
         final Set<ServerAddress> oldAddresses = connections.keySet();
 
         LOGGER.debug("Addresses NSQ connected to: " + newAddresses);
@@ -199,19 +312,16 @@ public class NSQConsumer implements Closeable {
             // just log a message and keep moving
             LOGGER.warn("No NSQLookup server connections or topic does not exist.");
         } else {
-            for (final ServerAddress server : Sets.difference(oldAddresses, newAddresses)) {
+            for (final ServerAddress server : Sets.newHashSet(Sets.difference(oldAddresses, newAddresses))) {
                 LOGGER.info("Remove connection " + server.toString());
-                connections.get(server).close();
-                connections.remove(server);
+                final Connection connection = connections.remove(server);
+                rdyController.removeConnection(connection);
+                connection.close();
             }
 
-            for (final ServerAddress server : Sets.difference(newAddresses, oldAddresses)) {
-                if (!connections.containsKey(server)) {
-                    final Connection connection = createConnection(server);
-                    if (connection != null) {
-                        connections.put(server, connection);
-                    }
-                }
+            // connections are established concurrently, a slow node does not delay the others
+            for (final ServerAddress server : Sets.newHashSet(Sets.difference(newAddresses, oldAddresses))) {
+                createConnection(server);
             }
         }
     }
@@ -223,7 +333,8 @@ public class NSQConsumer implements Closeable {
     /**
      * This is the executor where the callbacks happen.
      * The executer can only changed before the client is started.
-     * Default is a cached threadpool.
+     * Default is a cached threadpool. A bounded executor such as {@link StripedExecutor} makes the consumer back off
+     * when it cannot keep up.
      */
     public NSQConsumer setExecutor(final ExecutorService executor) {
         if (!started) {
@@ -232,10 +343,54 @@ public class NSQConsumer implements Closeable {
         return this;
     }
 
+    /**
+     * Runs every callback on its own virtual thread, for callbacks blocking on I/O. At most max-in-flight callbacks
+     * run at the same time, see {@link #setMaxInFlight(int)}. It replaces the executor and falls back to platform
+     * threads when the runtime has no virtual threads (before Java 21).
+     */
+    public NSQConsumer setVirtualThreads(final boolean virtualThreads) {
+        if (!started) {
+            this.virtualThreads = virtualThreads;
+        }
+        return this;
+    }
+
+    /**
+     * Messages with equal keys are processed one after the other, in the order they are received. This requires a
+     * {@link StripedExecutor}, see {@link #setExecutor(ExecutorService)}. The extractor runs on the network thread,
+     * it must be fast.
+     */
+    public NSQConsumer setKeyExtractor(final Function<NSQMessage, ?> keyExtractor) {
+        if (!started) {
+            this.keyExtractor = keyExtractor;
+        }
+        return this;
+    }
+
     private Set<ServerAddress> lookupAddresses() {
         return lookup.lookup(topic);
     }
 
+    NSQLookup getLookup() {
+        return lookup;
+    }
+
+    String getTopic() {
+        return topic;
+    }
+
+    /**
+     * Uses the scheduler, executor and lookup polling of a runtime instead of its own.
+     */
+    NSQConsumer setRuntime(final NSQConsumerRuntime runtime) {
+        if (!started) {
+            this.runtime = runtime;
+            this.scheduler = runtime.getScheduler();
+            this.executor = runtime.getExecutor();
+        }
+        return this;
+    }
+
     /**
      * This method allows for a runnable task to be scheduled using the NSQConsumer's scheduler executor
      * This is intended for calling a periodic method in a NSQMessageCallback for batching messages
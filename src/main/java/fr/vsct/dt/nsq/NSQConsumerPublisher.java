@@ -0,0 +1,180 @@
+package fr.vsct.dt.nsq;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.MoreExecutors;
+import fr.vsct.dt.nsq.lookup.NSQLookup;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reactive Streams view of a consumer. The demand of the subscriber drives the max-in-flight of the underlying
+ * {@link NSQConsumer}: nsqd is only allowed to send the messages that were requested, on top of the ones already
+ * delivered and not yet finished. Subscribers must finish or requeue every message they receive.
+ * <p>
+ * A publisher accepts a single subscriber. Messages are delivered on the network threads, one at a time.
+ */
+public class NSQConsumerPublisher implements Publisher<NSQMessage> {
+    private final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(NSQConsumerPublisher.class);
+
+    private final NSQLookup lookup;
+    private final String topic;
+    private final String channel;
+    private final NSQConfig config;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private int maxInFlight = 2500;
+
+    public NSQConsumerPublisher(final NSQLookup lookup, final String topic, final String channel) {
+        this(lookup, topic, channel, new NSQConfig());
+    }
+
+    public NSQConsumerPublisher(final NSQLookup lookup, final String topic, final String channel,
+                                final NSQConfig config) {
+        this.lookup = lookup;
+        this.topic = topic;
+        this.channel = channel;
+        this.config = config;
+    }
+
+    /**
+     * Upper bound of the max-in-flight, reached when the subscriber requests an unbounded number of messages.
+     */
+    public NSQConsumerPublisher setMaxInFlight(final int maxInFlight) {
+        Preconditions.checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    @Override
+    public void subscribe(final Subscriber<? super NSQMessage> subscriber) {
+        Preconditions.checkNotNull(subscriber);
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(final long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("NSQConsumerPublisher only supports one subscriber"));
+            return;
+        }
+        final ConsumerSubscription subscription = new ConsumerSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        subscription.start();
+    }
+
+    private class ConsumerSubscription implements Subscription {
+        private final Subscriber<? super NSQMessage> subscriber;
+        private final NSQConsumer consumer;
+        private final Queue<NSQMessage> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled = false;
+
+        ConsumerSubscription(final Subscriber<? super NSQMessage> subscriber) {
+            this.subscriber = subscriber;
+            this.consumer = new NSQConsumer(lookup, topic, channel, this::onMessage, config);
+            // messages are only queued by the callback, it does not need a thread of its own
+            consumer.setExecutor(MoreExecutors.newDirectExecutorService());
+            consumer.setMaxInFlight(0);
+            consumer.setCompletionListener(this::updateMaxInFlight);
+        }
+
+        void start() {
+            if (!cancelled) {
+                consumer.start();
+                updateMaxInFlight();
+            }
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Requested " + n + " messages, must be positive"));
+                return;
+            }
+            long current;
+            long next;
+            do {
+                current = requested.get();
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!requested.compareAndSet(current, next));
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                // cancel may be called from onNext on a network thread, which must not wait for CLS
+                CompletableFuture.runAsync(consumer::shutdown);
+                drain();
+            }
+        }
+
+        private void onMessage(final NSQMessage message) {
+            // the subscriber may get the message after the callback returns
+            message.retain();
+            queue.add(message);
+            drain();
+        }
+
+        /**
+         * Delivers the queued messages as long as there is demand. Only one thread drains at a time, the others
+         * leave a signal so that the draining thread loops once more.
+         */
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (cancelled) {
+                    NSQMessage message;
+                    while ((message = queue.poll()) != null) {
+                        message.requeue();
+                    }
+                } else {
+                    while (!cancelled && requested.get() > 0 && !queue.isEmpty()) {
+                        final NSQMessage message = queue.poll();
+                        if (requested.get() != Long.MAX_VALUE) {
+                            requested.decrementAndGet();
+                        }
+                        try {
+                            subscriber.onNext(message);
+                        } catch (RuntimeException e) {
+                            LOGGER.error("Subscriber failed on message, cancelling the subscription", e);
+                            cancel();
+                        }
+                    }
+                    updateMaxInFlight();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * Allows nsqd to send the requested messages which are not queued yet, on top of the messages in flight.
+         */
+        private void updateMaxInFlight() {
+            if (cancelled) {
+                return;
+            }
+            final long demand = Math.max(0, requested.get() - queue.size());
+            final long target = consumer.getInFlight() + demand;
+            consumer.setMaxInFlight((int) Math.min(target, maxInFlight));
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package fr.vsct.dt.nsq;
+
+import fr.vsct.dt.nsq.callbacks.NSQErrorCallback;
+import fr.vsct.dt.nsq.callbacks.NSQMessageCallback;
+import fr.vsct.dt.nsq.lookup.NSQLookup;
+import com.google.common.base.Preconditions;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resources shared by the consumers of many topics and channels: one event loop group for their connections, one
+ * scheduler, one callback executor and a single lookup poller which looks all the topics up at once. A total
+ * max-in-flight can also be split evenly across the consumers.
+ * <p>
+ * Consumers are created with {@link #subscribe}, configured as usual, then started. Their lookup period is the one
+ * of the runtime.
+ */
+public class NSQConsumerRuntime implements Closeable {
+    private final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(NSQConsumerRuntime.class);
+
+    private final List<NSQConsumer> consumers = new CopyOnWriteArrayList<>();
+    private volatile boolean started = false;
+    private volatile boolean closed = false;
+    private EventLoopGroup eventLoopGroup = null;
+    private ExecutorService executor = null;
+    private ScheduledExecutorService scheduler;
+    private boolean ownEventLoopGroup = false;
+    private boolean ownExecutor = false;
+    private long lookupPeriod = 60 * 1000;
+    private volatile int maxInFlight = 0;
+
+    public synchronized NSQConsumerRuntime start() {
+        Preconditions.checkState(!closed, "The runtime was shut down");
+        if (!started) {
+            started = true;
+            if (eventLoopGroup == null) {
+                eventLoopGroup = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors());
+                ownEventLoopGroup = true;
+            }
+            if (executor == null) {
+                executor = Executors.newCachedThreadPool();
+                ownExecutor = true;
+            }
+            scheduler = Executors.newSingleThreadScheduledExecutor();
+            scheduler.scheduleAtFixedRate(this::poll, lookupPeriod, lookupPeriod, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    public NSQConsumer subscribe(final NSQLookup lookup, final String topic, final String channel,
+                                 final NSQMessageCallback callback) {
+        return subscribe(lookup, topic, channel, callback, new NSQConfig());
+    }
+
+    public NSQConsumer subscribe(final NSQLookup lookup, final String topic, final String channel,
+                                 final NSQMessageCallback callback, final NSQConfig config) {
+        return subscribe(lookup, topic, channel, callback, config, null);
+    }
+
+    /**
+     * Creates a consumer using the resources of this runtime, which is started if needed. Unless the config already
+     * has an event loop group, the consumer uses a copy of it with the group of the runtime: the config passed in is
+     * never modified, so it can be shared with clients that outlive the runtime. The consumer must be started.
+     */
+    public NSQConsumer subscribe(final NSQLookup lookup, final String topic, final String channel,
+                                 final NSQMessageCallback callback, final NSQConfig config,
+                                 final NSQErrorCallback errCallback) {
+        start();
+        NSQConfig consumerConfig = config;
+        if (config.getEventLoopGroup() == null) {
+            // the group is shut down with the runtime, it must not leak to the other users of the config
+            consumerConfig = config.copy();
+            consumerConfig.setEventLoopGroup(eventLoopGroup);
+        }
+        return new NSQConsumer(lookup, topic, channel, callback, consumerConfig, errCallback).setRuntime(this);
+    }
+
+    void register(final NSQConsumer consumer) {
+        consumers.add(consumer);
+        rebalance();
+    }
+
+    void unregister(final NSQConsumer consumer) {
+        consumers.remove(consumer);
+        rebalance();
+    }
+
+    List<NSQConsumer> getConsumers() {
+        return Collections.unmodifiableList(consumers);
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Looks the topics of all the consumers up, with one query per lookup, and updates their connections.
+     */
+    private void poll() {
+        final Map<NSQLookup, Set<String>> topics = new IdentityHashMap<>();
+        for (final NSQConsumer consumer : consumers) {
+            topics.computeIfAbsent(consumer.getLookup(), l -> new HashSet<>()).add(consumer.getTopic());
+        }
+        for (final Map.Entry<NSQLookup, Set<String>> entry : topics.entrySet()) {
+            final Map<String, Set<ServerAddress>> addresses;
+            try {
+                addresses = entry.getKey().lookup(entry.getValue());
+            } catch (final RuntimeException e) {
+                LOGGER.warn("Lookup of topics {} failed", entry.getValue(), e);
+                continue;
+            }
+            for (final NSQConsumer consumer : consumers) {
+                if (consumer.getLookup() != entry.getKey()) {
+                    continue;
+                }
+                try {
+                    consumer.connect(addresses.getOrDefault(consumer.getTopic(), Collections.emptySet()));
+                } catch (final RuntimeException e) {
+                    LOGGER.warn("Could not update the connections of topic {}", consumer.getTopic(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits the total max-in-flight evenly over the consumers, each of them gets at least 1.
+     */
+    private synchronized void rebalance() {
+        final int total = maxInFlight;
+        if (total <= 0) {
+            return;
+        }
+        final NSQConsumer[] all = consumers.toArray(new NSQConsumer[0]);
+        for (int i = 0; i < all.length; i++) {
+            all[i].setMaxInFlight(Math.max(1, total / all.length + (i < total % all.length ? 1 : 0)));
+        }
+    }
+
+    /**
+     * Total number of messages in flight over all the consumers, it overrides their own max-in-flight.
+     * 0, the default, lets every consumer use its own. It can be changed while the runtime is running.
+     */
+    public NSQConsumerRuntime setMaxInFlight(final int maxInFlight) {
+        Preconditions.checkArgument(maxInFlight >= 0, "maxInFlight must not be negative");
+        this.maxInFlight = maxInFlight;
+        rebalance();
+        return this;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public NSQConsumerRuntime setLookupPeriod(final long periodMillis) {
+        if (!started) {
+            this.lookupPeriod = periodMillis;
+        }
+        return this;
+    }
+
+    /**
+     * Event loop group of the connections. Default is a NIO group with one thread per core, shut down with the
+     * runtime.
+     */
+    public NSQConsumerRuntime setEventLoopGroup(final EventLoopGroup eventLoopGroup) {
+        if (!started) {
+            this.eventLoopGroup = eventLoopGroup;
+        }
+        return this;
+    }
+
+    /**
+     * Executor where the callbacks of all the consumers happen. Default is a cached thread pool, shut down with the
+     * runtime.
+     */
+    public NSQConsumerRuntime setExecutor(final ExecutorService executor) {
+        if (!started) {
+            this.executor = executor;
+        }
+        return this;
+    }
+
+    /**
+     * Shuts down every consumer, then the threads owned by the runtime.
+     */
+    public synchronized void shutdown() {
+        if (!started || closed) {
+            return;
+        }
+        closed = true;
+        for (final NSQConsumer consumer : consumers) {
+            consumer.shutdown();
+        }
+        scheduler.shutdown();
+        if (ownExecutor) {
+            executor.shutdown();
+        }
+        if (ownEventLoopGroup) {
+            eventLoopGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public void close() {
+        shutdown();
+    }
+}
@@ -1,46 +1,98 @@
 package fr.vsct.dt.nsq;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.io.UnsupportedEncodingException;
+import fr.vsct.dt.nsq.serialization.NSQDeserializer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class NSQMessage {
 
-    private final Logger LOGGER = LoggerFactory.getLogger(NSQMessage.class);
-    private byte[] id;
+    private MessageId id;
     private int attempts;
     private Date timestamp;
     private byte[] message;
+    private ByteBuf buffer;
+    private boolean released = false;
+    // the buffer outlives the callback, it is released when the message is finished or requeued
+    private boolean retained = false;
+    private boolean completed = false;
     private Connection connection;
 
     /**
      * Finished processing this message, let nsq know so it doesnt get reprocessed.
+     * The message body buffer is released.
      */
     public void finished() {
-        try {
-            connection.command(NSQCommand.instance("FIN " + new String(id, "ascii")));
-        } catch (UnsupportedEncodingException e) {
-            LOGGER.error("ASCII charset is not supported by your JVM?", e);
-        }
+        release();
+        connection.command(NSQCommand.finish(id));
+        complete(false);
     }
 
     /**
      * indicates a problem with processing, puts it back on the queue.
+     * The message body buffer is released.
      */
     public void requeue(int timeoutMillis) {
-        try {
-            connection.command(NSQCommand.instance("REQ " + new String(id, "ascii") + " " + timeoutMillis));
-        } catch (UnsupportedEncodingException e) {
-            LOGGER.error("ASCII charset is not supported by your JVM?", e);
-        }
+        release();
+        connection.command(NSQCommand.requeue(id, timeoutMillis));
+        complete(true);
     }
 
     public void requeue() {
         requeue(0);
     }
 
+    /**
+     * Finishes messages together, the acknowledgements of each connection are written with a single flush.
+     */
+    public static void finishAll(Collection<NSQMessage> messages) {
+        acknowledgeAll(messages, false, 0);
+    }
+
+    /**
+     * Requeues messages together, the commands of each connection are written with a single flush.
+     */
+    public static void requeueAll(Collection<NSQMessage> messages, int timeoutMillis) {
+        acknowledgeAll(messages, true, timeoutMillis);
+    }
+
+    private static void acknowledgeAll(Collection<NSQMessage> messages, boolean requeue, int timeoutMillis) {
+        Map<Connection, List<NSQCommand>> commands = new LinkedHashMap<>();
+        for (NSQMessage message : messages) {
+            message.release();
+            commands.computeIfAbsent(message.connection, c -> new ArrayList<>())
+                    .add(requeue ? NSQCommand.requeue(message.id, timeoutMillis) : NSQCommand.finish(message.id));
+        }
+        for (Map.Entry<Connection, List<NSQCommand>> entry : commands.entrySet()) {
+            entry.getKey().commandAll(entry.getValue());
+        }
+        for (NSQMessage message : messages) {
+            message.complete(requeue);
+        }
+    }
+
+    /**
+     * Resets the timeout of this message on nsqd, for processing that takes longer than the message timeout.
+     */
+    public void touch() {
+        connection.command(NSQCommand.touch(id));
+    }
+
+    private void complete(boolean requeue) {
+        if (!completed) {
+            completed = true;
+            connection.messageFinished(requeue);
+        }
+    }
+
     public void setConnection(Connection connection) {
         this.connection = connection;
     }
@@ -50,10 +102,18 @@ public class NSQMessage {
     }
 
     public byte[] getId() {
-        return id;
+        return id.getBytes();
     }
 
     public void setId(byte[] id) {
+        this.id = MessageId.of(id);
+    }
+
+    public MessageId getMessageId() {
+        return id;
+    }
+
+    public void setMessageId(MessageId id) {
         this.id = id;
     }
 
@@ -73,11 +133,93 @@ public class NSQMessage {
         this.timestamp = timestamp;
     }
 
-    public byte[] getMessage() {
+    /**
+     * @return the message body, copied from the network buffer on first access. The body is not copied otherwise, so
+     * this must first be called from the callback, or before a {@link #retain() retained} message is finished or
+     * requeued.
+     * @throws IllegalStateException if the buffer was released before the body was copied
+     */
+    public synchronized byte[] getMessage() {
+        if (message == null && buffer != null) {
+            copy();
+        } else if (message == null && released) {
+            throw new IllegalStateException("Message body was released before being copied");
+        }
         return message;
     }
 
+    private void copy() {
+        message = new byte[buffer.readableBytes()];
+        buffer.getBytes(buffer.readerIndex(), message);
+    }
+
+    /**
+     * @return the message body deserialized from the network buffer, without copy. It must be called from the
+     * callback, before the message is finished or requeued.
+     */
+    public <T> T getMessage(NSQDeserializer<? extends T> deserializer) throws IOException {
+        final ByteBuf buf = getMessageBuffer();
+        if (buf == null) {
+            throw new IllegalStateException("Message body was released before being read");
+        }
+        return deserializer.deserialize(buf);
+    }
+
     public void setMessage(byte[] message) {
         this.message = message;
     }
+
+    /**
+     * @return a view on the message body in the network buffer, without copy. It is only valid until the callback
+     * returns or the message is finished, requeued or released, whichever comes first.
+     */
+    public synchronized ByteBuf getMessageBuffer() {
+        if (buffer == null) {
+            return message != null ? Unpooled.wrappedBuffer(message) : null;
+        }
+        return buffer.duplicate();
+    }
+
+    /**
+     * @return the message body as a {@link ByteBuffer}, see {@link #getMessageBuffer()}
+     */
+    public ByteBuffer getMessageByteBuffer() {
+        final ByteBuf buf = getMessageBuffer();
+        return buf != null ? buf.nioBuffer() : null;
+    }
+
+    public void setMessageBuffer(ByteBuf buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Keeps the network buffer holding the message body after the callback returns, until the message is finished
+     * or requeued. It is meant for callbacks handing the message to another thread, which then reads the body
+     * without copy.
+     */
+    public synchronized void retain() {
+        retained = true;
+    }
+
+    /**
+     * Called when the callback returns, the buffer is released unless the message was retained.
+     */
+    synchronized void callbackReturned() {
+        if (!retained) {
+            release();
+        }
+    }
+
+    /**
+     * Releases the network buffer holding the message body. This is done when the message is finished or requeued
+     * and when the callback returns. The body is not copied, see {@link #getMessage()}.
+     */
+    public synchronized void release() {
+        if (buffer != null) {
+            final ByteBuf buf = buffer;
+            buffer = null;
+            released = true;
+            buf.release();
+        }
+    }
 }
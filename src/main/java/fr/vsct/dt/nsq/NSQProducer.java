@@ -1,144 +1,506 @@
 package fr.vsct.dt.nsq;
 
-import fr.vsct.dt.nsq.exceptions.BadMessageException;
-import fr.vsct.dt.nsq.exceptions.BadTopicException;
 import fr.vsct.dt.nsq.exceptions.NSQException;
+import fr.vsct.dt.nsq.executor.VirtualThreads;
 import fr.vsct.dt.nsq.exceptions.NoConnectionsException;
 import fr.vsct.dt.nsq.frames.ErrorFrame;
 import fr.vsct.dt.nsq.frames.NSQFrame;
-import fr.vsct.dt.nsq.pool.ConnectionPoolFactory;
-import com.google.common.collect.Sets;
-import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
-import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
+import fr.vsct.dt.nsq.journal.SpillJournal;
+import fr.vsct.dt.nsq.metrics.Counter;
+import fr.vsct.dt.nsq.metrics.Histogram;
+import fr.vsct.dt.nsq.metrics.MetricsRegistry;
+import fr.vsct.dt.nsq.selection.LeastOutstandingSelector;
+import fr.vsct.dt.nsq.selection.Node;
+import fr.vsct.dt.nsq.selection.NodeSelector;
+import fr.vsct.dt.nsq.selection.NodeSet;
+import fr.vsct.dt.nsq.selection.PowerOfTwoChoicesSelector;
+import fr.vsct.dt.nsq.selection.RoundRobinSelector;
+import fr.vsct.dt.nsq.serialization.NSQSerializer;
+import com.google.common.base.Preconditions;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
 
+import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
-import java.util.NoSuchElementException;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 public class NSQProducer {
-    private Set<ServerAddress> addresses = Sets.newConcurrentHashSet();
-    private int roundRobinCount = 0;
+    // time given to nsqd to respond once connected, or to the spill journal to be written
+    private static final long PUBLISH_TIMEOUT = 15;
+    private static final long REPLAY_INTERVAL_MILLIS = 1000;
+    private static final int REPLAY_BATCH_MESSAGES = 100;
+    private static final int REPLAY_BATCH_BYTES = 512 * 1024;
+    private final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(NSQProducer.class);
+    private final NodeSet nodes = new NodeSet();
     private volatile boolean started = false;
     private ExecutorService executor = Executors.newCachedThreadPool();
-    private GenericKeyedObjectPoolConfig poolConfig = null;
-    private GenericKeyedObjectPool<ServerAddress, Connection> pool;
+    private final Map<ServerAddress, ConnectionSet> connections = new ConcurrentHashMap<>();
     private NSQConfig config = new NSQConfig();
-    private int connectionRetries = 5;
+    private int connectionsPerNode = 2;
+    private long healthCheckIntervalMillis = 10000;
+    private ScheduledFuture<?> healthCheck;
+    private SpillJournal journal = null;
+    private ScheduledFuture<?> replayTask;
+    private final AtomicBoolean replaying = new AtomicBoolean();
+    private BatchConfig batchConfig = null;
+    private MessageBatcher batcher = null;
+    private BufferConfig bufferConfig = null;
+    private PublishBuffer buffer = null;
+    private Histogram pubRtt;
+    private Histogram mpubRtt;
+    private Histogram dpubRtt;
+    private Counter published;
+    private Counter errors;
+    private Counter spilled;
 
     public NSQProducer start() {
         if (!started) {
             started = true;
-            createPool();
+            final MetricsRegistry metrics = config.getMetricsRegistry();
+            pubRtt = metrics.histogram("nsq.producer.pub.rtt");
+            mpubRtt = metrics.histogram("nsq.producer.mpub.rtt");
+            dpubRtt = metrics.histogram("nsq.producer.dpub.rtt");
+            published = metrics.counter("nsq.producer.published");
+            errors = metrics.counter("nsq.producer.errors");
+            spilled = metrics.counter("nsq.producer.spilled");
+            if (healthCheckIntervalMillis > 0) {
+                healthCheck = Connection.getEventLoopGroup(config).scheduleAtFixedRate(this::checkHealth,
+                        healthCheckIntervalMillis, healthCheckIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+            if (journal != null) {
+                replayTask = Connection.getEventLoopGroup(config).scheduleAtFixedRate(
+                        () -> executor.execute(this::replay),
+                        REPLAY_INTERVAL_MILLIS, REPLAY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            if (batchConfig != null) {
+                batcher = new MessageBatcher(this, batchConfig);
+            }
+            if (bufferConfig != null) {
+                buffer = new PublishBuffer(this, bufferConfig, metrics.counter("nsq.producer.dropped"));
+                metrics.gauge("nsq.producer.buffer.bytes", buffer::getBytes);
+            }
         }
         return this;
     }
 
-    private void createPool() {
-        if (poolConfig == null) {
-            poolConfig = new GenericKeyedObjectPoolConfig();
-            poolConfig.setTestOnBorrow(true);
-            poolConfig.setJmxEnabled(false);
-        }
-        pool = new GenericKeyedObjectPool<>(new ConnectionPoolFactory(config), poolConfig);
+    private ConnectionSet getConnectionSet(ServerAddress address) {
+        return connections.computeIfAbsent(address, a -> new ConnectionSet(a, config, connectionsPerNode));
     }
 
-    protected Connection getConnection() throws NoConnectionsException {
-        int c = 0;
-        while (c < connectionRetries) {
-            ServerAddress[] serverAddresses = addresses.toArray(new ServerAddress[addresses.size()]);
-            if (serverAddresses.length != 0) {
-                try {
-                    return pool.borrowObject(serverAddresses[roundRobinCount++ % serverAddresses.length]);
-                } catch (NoSuchElementException e) {
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException ix) {
-                        throw new NoConnectionsException("Could not acquire a connection to a server", ix);
-                    }
-                } catch (Exception ex) {
-                    throw new NoConnectionsException("Could not acquire a connection to a server", ex);
-                }
-            }
+    private void checkHealth() {
+        for (ConnectionSet set : connections.values()) {
+            set.checkHealth();
         }
-        throw new IllegalStateException("No server configured for producer");
     }
 
     /**
      * produce multiple messages.
      */
     public void produceMulti(String topic, List<byte[]> messages) throws TimeoutException, NSQException {
-        if (!started) {
-            throw new IllegalStateException("Producer must be started before producing messages!");
+        await(publishMulti(topic, messages));
+    }
+
+    /**
+     * Publishes a message and waits for nsqd to acknowledge it. In buffered mode it only waits for the message to be
+     * queued, see {@link #setBufferConfig(BufferConfig)}.
+     */
+    public void produce(String topic, byte[] message) throws NSQException, TimeoutException {
+        if (buffer != null) {
+            checkStarted();
+            buffer.add(topic, message);
+            return;
         }
-        if (messages == null || messages.isEmpty()) {
+        await(publishOne(topic, message));
+    }
+
+    /**
+     * Serializes the message straight into a pooled network buffer, which is sent without being copied. With
+     * auto-batching, buffering or a spill journal, which keep byte arrays, it is serialized into a byte array and
+     * published with {@link #produce(String, byte[])}.
+     */
+    public <T> void produce(String topic, T message, NSQSerializer<? super T> serializer)
+            throws NSQException, TimeoutException {
+        if (keepsBytes()) {
+            produce(topic, toBytes(message, serializer));
             return;
         }
+        await(publishSerialized(topic, message, serializer));
+    }
+
+    /**
+     * Asynchronous version of {@link #produce(String, Object, NSQSerializer)}.
+     */
+    public <T> CompletableFuture<Void> produceAsync(String topic, T message, NSQSerializer<? super T> serializer) {
+        try {
+            if (keepsBytes()) {
+                return produceAsync(topic, toBytes(message, serializer));
+            }
+            return onExecutor(publishSerialized(topic, message, serializer));
+        } catch (NSQException e) {
+            return failed(e);
+        }
+    }
+
+    /**
+     * Publishes a message that nsqd holds for delayMillis before delivering it to the consumers. nsqd rejects
+     * delays above its --max-req-timeout, one hour by default.
+     */
+    public void produceDeferred(String topic, byte[] message, int delayMillis) throws NSQException, TimeoutException {
+        await(publishDeferred(topic, message, delayMillis));
+    }
+
+    /**
+     * Asynchronous version of {@link #produceDeferred(String, byte[], int)}. MPUB cannot defer messages, so with
+     * auto-batching deferred messages are sent as individual DPUB commands, pipelined and flushed together.
+     */
+    public CompletableFuture<Void> produceDeferredAsync(String topic, byte[] message, int delayMillis) {
+        return onExecutor(publishDeferred(topic, message, delayMillis));
+    }
+
+    /**
+     * Publishes a message without waiting for nsqd to acknowledge it. Many publishes can be pipelined
+     * on the same connection, the returned future completes on the executor once the matching
+     * response has been received.
+     */
+    public CompletableFuture<Void> produceAsync(String topic, byte[] message) {
+        if (buffer != null) {
+            checkStarted();
+            try {
+                return onExecutor(buffer.add(topic, message));
+            } catch (NSQException e) {
+                return failed(e);
+            }
+        }
+        return onExecutor(publishOne(topic, message));
+    }
+
+    /**
+     * Asynchronous version of {@link #produceMulti(String, List)}.
+     */
+    public CompletableFuture<Void> produceMultiAsync(String topic, List<byte[]> messages) {
+        return onExecutor(publishMulti(topic, messages));
+    }
+
+    private CompletableFuture<Void> publishOne(String topic, byte[] message) {
+        if (batcher != null) {
+            checkStarted();
+            return batcher.add(topic, message);
+        }
+        return publish(NSQCommand.publish(topic, message), pubRtt, 1, topic, Collections.singletonList(message));
+    }
+
+    private boolean keepsBytes() {
+        return batcher != null || buffer != null || journal != null;
+    }
+
+    private <T> CompletableFuture<Void> publishSerialized(String topic, T message, NSQSerializer<? super T> serializer)
+            throws NSQException {
+        checkStarted();
+        ByteBuf body = config.getAllocator().buffer();
+        try {
+            serializer.serialize(message, body);
+        } catch (IOException | RuntimeException e) {
+            body.release();
+            throw new NSQException("Could not serialize message", e);
+        }
+        NSQCommand command = NSQCommand.publish(topic, body);
+        CompletableFuture<Void> sent;
+        try {
+            sent = publish(command, pubRtt, 1, topic, null);
+        } catch (RuntimeException e) {
+            command.releaseBody();
+            throw e;
+        }
+        // the encoder takes the body, it is left to release when the command was never written
+        return sent.whenComplete((v, error) -> command.releaseBody());
+    }
 
+    private static <T> byte[] toBytes(T message, NSQSerializer<? super T> serializer) throws NSQException {
+        ByteBuf buf = Unpooled.buffer();
+        try {
+            serializer.serialize(message, buf);
+            byte[] bytes = new byte[buf.readableBytes()];
+            buf.readBytes(bytes);
+            return bytes;
+        } catch (IOException | RuntimeException e) {
+            throw new NSQException("Could not serialize message", e);
+        } finally {
+            buf.release();
+        }
+    }
+
+    private CompletableFuture<Void> publishDeferred(String topic, byte[] message, int delayMillis) {
+        Preconditions.checkArgument(delayMillis >= 0, "delayMillis must not be negative");
+        if (delayMillis == 0) {
+            return publishOne(topic, message);
+        }
+        return publish(NSQCommand.deferredPublish(topic, message, delayMillis), dpubRtt, 1, topic, null);
+    }
+
+    CompletableFuture<Void> publishMulti(String topic, List<byte[]> messages) {
+        return publishMulti(topic, messages, true);
+    }
+
+    private CompletableFuture<Void> publishMulti(String topic, List<byte[]> messages, boolean spill) {
+        if (messages == null || messages.isEmpty()) {
+            checkStarted();
+            return CompletableFuture.completedFuture(null);
+        }
         if (messages.size() == 1) {
             //encoding will be screwed up if we MPUB a
-            this.produce(topic, messages.get(0));
+            return publish(NSQCommand.publish(topic, messages.get(0)), pubRtt, 1, topic, spill ? messages : null);
+        }
+        return publish(NSQCommand.multiPublish(topic, messages), mpubRtt, messages.size(), topic,
+                spill ? messages : null);
+    }
+
+    /**
+     * @param spillable the messages of the command, which go to the spill journal when no nsqd is available, or null
+     */
+    private CompletableFuture<Void> publish(NSQCommand command, Histogram rtt, int count, String topic,
+                                           List<byte[]> spillable) {
+        checkStarted();
+        Node node = nodes.select();
+        if (node == null) {
+            throw new IllegalStateException("No server configured for producer");
+        }
+        boolean spill = journal != null && spillable != null;
+        if (spill && !nodes.hasAvailable()) {
+            return spill(topic, spillable);
+        }
+        CompletableFuture<Connection> connection = getConnectionSet(node.getAddress()).get();
+        if (connection.isDone() && !connection.isCompletedExceptionally()) {
+            return send(node, connection.join(), command, rtt, count);
+        }
+        return connection.handle((c, error) -> {
+            if (error != null) {
+                nodes.connectionFailed(node);
+                if (spill) {
+                    return spill(topic, spillable);
+                }
+                errors.increment();
+                return NSQProducer.<Void>failed(new NoConnectionsException("Could not acquire a connection to a server",
+                        error instanceof CompletionException ? error.getCause() : error));
+            }
+            return send(node, c, command, rtt, count);
+        }).thenCompose(Function.identity());
+    }
+
+    private CompletableFuture<Void> spill(String topic, List<byte[]> messages) {
+        try {
+            if (journal.append(topic, messages)) {
+                spilled.add(messages.size());
+                return CompletableFuture.completedFuture(null);
+            }
+            errors.increment();
+            return failed(new NoConnectionsException("No nsqd available and the spill journal is full"));
+        } catch (IOException | RuntimeException e) {
+            errors.increment();
+            return failed(new NSQException("Could not write to the spill journal", e));
+        }
+    }
+
+    /**
+     * Publishes the messages of the spill journal in MPUB batches, one after the other, until the journal is empty
+     * or a batch fails.
+     */
+    private void replay() {
+        if (!started || journal.getPendingCount() == 0 || !nodes.hasAvailable()
+                || !replaying.compareAndSet(false, true)) {
             return;
         }
+        replayNext();
+    }
 
-        Connection c = this.getConnection();
+    private void replayNext() {
+        SpillJournal.Batch batch = started ? journal.next(REPLAY_BATCH_MESSAGES, REPLAY_BATCH_BYTES) : null;
+        if (batch == null) {
+            replaying.set(false);
+            return;
+        }
+        CompletableFuture<Void> sent;
         try {
-            NSQCommand command = NSQCommand.instance("MPUB " + topic);
-            command.setData(messages);
+            sent = publishMulti(batch.getTopic(), batch.getMessages(), false);
+        } catch (RuntimeException e) {
+            sent = failed(e);
+        }
+        sent.whenComplete((v, error) -> {
+            try {
+                executor.execute(() -> replayed(batch, error));
+            } catch (RejectedExecutionException e) {
+                // the producer is shut down, the batch stays in the journal and is published again on the next start
+                replaying.set(false);
+            }
+        });
+    }
 
+    private void replayed(SpillJournal.Batch batch, Throwable error) {
+        if (error != null) {
+            LOGGER.warn("Could not publish the messages of the spill journal, will retry", error);
+            replaying.set(false);
+            return;
+        }
+        journal.commit(batch);
+        replayNext();
+    }
 
-            NSQFrame frame = c.commandAndWait(command);
-            if (frame != null && frame instanceof ErrorFrame) {
-                String err = ((ErrorFrame) frame).getErrorMessage();
-                if (err.startsWith("E_BAD_TOPIC")) {
-                    throw new BadTopicException(err);
-                }
-                if (err.startsWith("E_BAD_MESSAGE")) {
-                    throw new BadMessageException(err);
-                }
+    /**
+     * Pipelines the command, the connection stays available to the other threads.
+     */
+    private CompletableFuture<Void> send(Node node, Connection c, NSQCommand command, Histogram rtt, int count) {
+        nodes.requestStarted(node);
+        long start = System.nanoTime();
+        return c.commandAsync(command).handle((frame, error) -> {
+            long latency = System.nanoTime() - start;
+            rtt.record(latency);
+            nodes.requestCompleted(node, latency, error == null && !isNodeFailure(frame));
+            if (error != null || frame instanceof ErrorFrame) {
+                errors.increment();
+                throw error instanceof CompletionException ? (CompletionException) error
+                        : new CompletionException(error != null ? error : NSQException.of((ErrorFrame) frame));
             }
-        } finally {
-            pool.returnObject(c.getServerAddress(), c);
+            published.add(count);
+            return null;
+        });
+    }
+
+    /**
+     * Errors such as E_BAD_TOPIC are caused by the request, the *_FAILED ones by the node.
+     */
+    private static boolean isNodeFailure(NSQFrame frame) {
+        if (!(frame instanceof ErrorFrame)) {
+            return false;
         }
+        String error = ((ErrorFrame) frame).getErrorMessage();
+        return error != null && error.contains("_FAILED");
     }
 
-    public void produce(String topic, byte[] message) throws NSQException, TimeoutException {
+    private void checkStarted() {
         if (!started) {
             throw new IllegalStateException("Producer must be started before producing messages!");
         }
-        Connection c = getConnection();
+    }
+
+    private CompletableFuture<Void> onExecutor(CompletableFuture<Void> future) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        future.whenComplete((v, error) -> {
+            try {
+                executor.execute(() -> {
+                    if (error != null) {
+                        result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                    } else {
+                        result.complete(null);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the producer is shut down, nothing would complete the future
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable error) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+
+    private void await(CompletableFuture<Void> future) throws NSQException, TimeoutException {
         try {
-            NSQCommand command = NSQCommand.instance("PUB " + topic, message);
-            NSQFrame frame = c.commandAndWait(command);
-            if (frame != null && frame instanceof ErrorFrame) {
-                String err = ((ErrorFrame) frame).getErrorMessage();
-                if (err.startsWith("E_BAD_TOPIC")) {
-                    throw new BadTopicException(err);
-                }
-                if (err.startsWith("E_BAD_MESSAGE")) {
-                    throw new BadMessageException(err);
-                }
+            // a failed connection attempt takes up to the connect timeout before the messages are spilled, waiting
+            // less would report a spilled message as failed and a retrying caller would publish it twice
+            future.get(config.getConnectTimeoutMillis() + TimeUnit.SECONDS.toMillis(PUBLISH_TIMEOUT),
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NSQException("Interrupted while waiting for nsqd response", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof NSQException) {
+                throw (NSQException) e.getCause();
             }
-        } finally {
-            pool.returnObject(c.getServerAddress(), c);
+            throw new NSQException("Could not produce message", e.getCause());
         }
     }
 
     public NSQProducer addAddress(String host, int port) {
-        addresses.add(new ServerAddress(host, port));
+        nodes.add(new ServerAddress(host, port));
         return this;
     }
 
     public NSQProducer removeAddress(String host, int port) {
-        addresses.remove(new ServerAddress(host, port));
+        ServerAddress address = new ServerAddress(host, port);
+        nodes.remove(address);
+        ConnectionSet set = connections.remove(address);
+        if (set != null) {
+            set.close();
+        }
+        return this;
+    }
+
+    /**
+     * Strategy picking the nsqd node of every publish, default is {@link RoundRobinSelector}.
+     * {@link LeastOutstandingSelector} and {@link PowerOfTwoChoicesSelector} move the load away from slow nodes.
+     */
+    public NSQProducer setNodeSelector(NodeSelector selector) {
+        nodes.setSelector(selector);
         return this;
     }
 
-    public NSQProducer setPoolConfig(GenericKeyedObjectPoolConfig poolConfig) {
+    /**
+     * Ejects a node for ejectionMillis once maxFailures requests failed in a row on it, 3 and 10 seconds by default.
+     */
+    public NSQProducer setNodeEjection(int maxFailures, long ejectionMillis) {
+        nodes.setMaxFailures(maxFailures);
+        nodes.setEjectionMillis(ejectionMillis);
+        return this;
+    }
+
+    /**
+     * Also ejects the nodes whose average latency is more than this factor times the one of the fastest node.
+     * Disabled by default.
+     */
+    public NSQProducer setSlowNodeFactor(double slowNodeFactor) {
+        nodes.setSlowNodeFactor(slowNodeFactor);
+        return this;
+    }
+
+    public NodeSet getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Number of connections to every nsqd, shared by all the publishing threads. Default is 2.
+     */
+    public NSQProducer setConnectionsPerNode(int connectionsPerNode) {
+        Preconditions.checkArgument(connectionsPerNode > 0, "connectionsPerNode must be positive");
+        if (!started) {
+            this.connectionsPerNode = connectionsPerNode;
+        }
+        return this;
+    }
+
+    /**
+     * How often a NOP is sent on every connection to detect dead sockets, and lost connections are re-established.
+     * Default is 10 seconds, 0 disables it.
+     */
+    public NSQProducer setHealthCheckIntervalMillis(long healthCheckIntervalMillis) {
         if (!started) {
-            this.poolConfig = poolConfig;
+            this.healthCheckIntervalMillis = healthCheckIntervalMillis;
         }
         return this;
     }
@@ -157,6 +519,54 @@ public class NSQProducer {
         return this;
     }
 
+    /**
+     * Completes the futures of the asynchronous methods on virtual threads, so that their continuations can block.
+     * It replaces the executor and falls back to platform threads when the runtime has no virtual threads.
+     */
+    public NSQProducer setVirtualThreads(boolean virtualThreads) {
+        if (!started && virtualThreads) {
+            this.executor = VirtualThreads.newExecutor();
+        }
+        return this;
+    }
+
+    /**
+     * Enables auto-batching: messages published one at a time are coalesced per topic into MPUB commands,
+     * each caller still gets its own completion. Batching is disabled by default and can only be enabled
+     * before the producer is started.
+     */
+    public NSQProducer setBatchConfig(BatchConfig batchConfig) {
+        if (!started) {
+            this.batchConfig = batchConfig;
+        }
+        return this;
+    }
+
+    /**
+     * Enables the buffered mode: {@link #produce(String, byte[])} and {@link #produceAsync(String, byte[])} queue the
+     * message in a bounded buffer and return, a background thread sends the queued messages in MPUB batches. When the
+     * buffer is full the {@link BufferConfig.OverflowPolicy} applies. Multi and deferred publishes are sent directly.
+     * It replaces auto-batching for these methods and can only be enabled before the producer is started.
+     */
+    public NSQProducer setBufferConfig(BufferConfig bufferConfig) {
+        if (!started) {
+            this.bufferConfig = bufferConfig;
+        }
+        return this;
+    }
+
+    /**
+     * Keeps the messages in a local journal instead of failing while no nsqd can be reached, that is when every node
+     * is ejected or a connection cannot be established. They are published again in MPUB batches once a node is
+     * available. Deferred messages are never journaled. The journal is not closed with the producer.
+     */
+    public NSQProducer setSpillJournal(SpillJournal journal) {
+        if (!started) {
+            this.journal = journal;
+        }
+        return this;
+    }
+
     public NSQProducer setConfig(NSQConfig config) {
         if (!started) {
             this.config = config;
@@ -168,13 +578,39 @@ public class NSQProducer {
         return executor;
     }
 
-    public GenericKeyedObjectPool<ServerAddress, Connection> getPool() {
-        return pool;
-    }
-
     public void shutdown() {
+        if (buffer != null) {
+            try {
+                buffer.close().get(PUBLISH_TIMEOUT, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                LOGGER.warn("Buffered messages could not be published", e);
+            }
+        }
+        if (batcher != null) {
+            try {
+                batcher.close().get(PUBLISH_TIMEOUT, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                LOGGER.warn("Pending batches could not be published", e);
+            }
+        }
         started = false;
-        pool.close();
+        if (healthCheck != null) {
+            healthCheck.cancel(false);
+        }
+        if (replayTask != null) {
+            replayTask.cancel(false);
+        }
+        for (ConnectionSet set : connections.values()) {
+            set.close();
+        }
+        connections.clear();
+        if (buffer != null) {
+            config.getMetricsRegistry().remove("nsq.producer.buffer.bytes");
+        }
         executor.shutdown();
     }
 }
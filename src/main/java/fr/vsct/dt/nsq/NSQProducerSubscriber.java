@@ -0,0 +1,169 @@
+package fr.vsct.dt.nsq;
+
+import com.google.common.base.Preconditions;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Reactive Streams sink publishing every item it receives on a topic, in MPUB batches pipelined on the connections
+ * of an {@link NSQProducer}. Upstream items are requested as the batches are acknowledged, so that at most
+ * batchSize * maxPendingBatches messages are buffered or waiting for nsqd.
+ * <p>
+ * A batch is sent as soon as it is full, or right away when no batch is in flight; items arriving meanwhile are
+ * gathered in the next batch. {@link #getCompletion()} completes once the upstream completed and every message was
+ * published, or fails with the first error.
+ */
+public class NSQProducerSubscriber implements Subscriber<byte[]> {
+    private final NSQProducer producer;
+    private final String topic;
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private final Deque<byte[]> pending = new ArrayDeque<>();
+    private int batchSize = 100;
+    private int maxPendingBatches = 4;
+    private Subscription subscription;
+    private int batchesInFlight = 0;
+    private boolean upstreamDone = false;
+
+    public NSQProducerSubscriber(final NSQProducer producer, final String topic) {
+        this.producer = producer;
+        this.topic = topic;
+    }
+
+    public NSQProducerSubscriber setBatchSize(final int batchSize) {
+        Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Number of batches waiting for the nsqd response at the same time.
+     */
+    public NSQProducerSubscriber setMaxPendingBatches(final int maxPendingBatches) {
+        Preconditions.checkArgument(maxPendingBatches > 0, "maxPendingBatches must be positive");
+        this.maxPendingBatches = maxPendingBatches;
+        return this;
+    }
+
+    public CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+
+    @Override
+    public void onSubscribe(final Subscription s) {
+        Preconditions.checkNotNull(s);
+        synchronized (this) {
+            if (subscription != null || completion.isDone()) {
+                s.cancel();
+                return;
+            }
+            subscription = s;
+        }
+        s.request((long) batchSize * maxPendingBatches);
+    }
+
+    @Override
+    public void onNext(final byte[] message) {
+        Preconditions.checkNotNull(message);
+        synchronized (this) {
+            if (completion.isDone()) {
+                return;
+            }
+            pending.add(message);
+        }
+        sendBatches();
+    }
+
+    @Override
+    public void onError(final Throwable t) {
+        Preconditions.checkNotNull(t);
+        synchronized (this) {
+            pending.clear();
+        }
+        completion.completeExceptionally(t);
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (this) {
+            upstreamDone = true;
+        }
+        sendBatches();
+    }
+
+    private void sendBatches() {
+        List<byte[]> batch;
+        while ((batch = nextBatch()) != null) {
+            final int size = batch.size();
+            final CompletableFuture<Void> published;
+            try {
+                published = producer.publishMulti(topic, batch);
+            } catch (RuntimeException e) {
+                failed(e);
+                return;
+            }
+            published.whenComplete((v, error) -> {
+                try {
+                    // send the next batches from the producer executor rather than from the network thread
+                    producer.getExecutor().execute(() -> published(size, error));
+                } catch (RejectedExecutionException e) {
+                    // the producer is shut down, nothing would send the remaining messages
+                    failed(e);
+                }
+            });
+        }
+        synchronized (this) {
+            if (upstreamDone && pending.isEmpty() && batchesInFlight == 0) {
+                completion.complete(null);
+            }
+        }
+    }
+
+    private void published(final int size, final Throwable error) {
+        if (error != null) {
+            failed(error instanceof CompletionException ? error.getCause() : error);
+            return;
+        }
+        synchronized (this) {
+            batchesInFlight--;
+        }
+        subscription.request(size);
+        sendBatches();
+    }
+
+    /**
+     * @return the next batch to send, or null if the pending messages should wait for a full batch or a free slot
+     */
+    private synchronized List<byte[]> nextBatch() {
+        if (completion.isDone() || pending.isEmpty() || batchesInFlight >= maxPendingBatches) {
+            return null;
+        }
+        if (pending.size() < batchSize && batchesInFlight > 0 && !upstreamDone) {
+            return null;
+        }
+        final List<byte[]> batch = new ArrayList<>(Math.min(pending.size(), batchSize));
+        while (batch.size() < batchSize && !pending.isEmpty()) {
+            batch.add(pending.poll());
+        }
+        batchesInFlight++;
+        return batch;
+    }
+
+    private void failed(final Throwable error) {
+        final Subscription s;
+        synchronized (this) {
+            pending.clear();
+            s = subscription;
+        }
+        if (completion.completeExceptionally(error) && s != null) {
+            s.cancel();
+        }
+    }
+}
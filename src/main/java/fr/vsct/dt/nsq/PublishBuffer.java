@@ -0,0 +1,258 @@
+package fr.vsct.dt.nsq;
+
+import fr.vsct.dt.nsq.exceptions.BufferFullException;
+import fr.vsct.dt.nsq.exceptions.NSQException;
+import fr.vsct.dt.nsq.metrics.Counter;
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded in-memory queue of the messages of a buffered producer. A background thread drains it in MPUB batches,
+ * serving the topics in turn, with at most maxPendingBatches batches waiting for nsqd. Messages queued while batches
+ * are pending are gathered in the next batches. Every message keeps its own completion.
+ */
+class PublishBuffer {
+    private final NSQProducer producer;
+    private final BufferConfig config;
+    private final Counter dropped;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    // queues are moved to the end once served, so that every topic gets its turn
+    private final Map<String, Deque<Entry>> queues = new LinkedHashMap<>();
+    private final Semaphore pendingBatches;
+    private final CompletableFuture<Void> drained = new CompletableFuture<>();
+    private long bytes = 0;
+    private long sequence = 0;
+    private boolean closed = false;
+
+    PublishBuffer(final NSQProducer producer, final BufferConfig config, final Counter dropped) {
+        this.producer = producer;
+        this.config = config;
+        this.dropped = dropped;
+        this.pendingBatches = new Semaphore(config.getMaxPendingBatches());
+        final Thread sender = new Thread(this::send, "nsq-producer-buffer");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Queues a message, the returned future completes once nsqd acknowledged it or it was dropped.
+     *
+     * @throws BufferFullException if the buffer is full and the policy is to fail or the wait for room timed out
+     */
+    CompletableFuture<Void> add(final String topic, final byte[] message) throws NSQException {
+        final Entry entry = new Entry(message);
+        List<Entry> discarded = Collections.emptyList();
+        lock.lock();
+        try {
+            Preconditions.checkState(!closed, "The producer is shutting down");
+            if (message.length > config.getMaxBytes()) {
+                // it would never fit, checked first so that DROP_OLDEST does not empty the buffer for nothing
+                if (config.getOverflowPolicy() == BufferConfig.OverflowPolicy.BLOCK
+                        || config.getOverflowPolicy() == BufferConfig.OverflowPolicy.FAIL) {
+                    throw new BufferFullException("Message of " + message.length
+                            + " bytes is larger than the publish buffer");
+                }
+            } else if (bytes + message.length > config.getMaxBytes()) {
+                if (config.getOverflowPolicy() == BufferConfig.OverflowPolicy.DROP_OLDEST) {
+                    discarded = dropOldest(message.length);
+                } else {
+                    waitForRoom(message.length);
+                }
+            }
+            if (bytes + message.length > config.getMaxBytes()) {
+                // DROP_NEWEST or larger than the buffer
+                discarded = Collections.singletonList(entry);
+            } else {
+                entry.sequence = sequence++;
+                queues.computeIfAbsent(topic, t -> new ArrayDeque<>()).add(entry);
+                bytes += message.length;
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (final Entry e : discarded) {
+            dropped.increment();
+            e.future.completeExceptionally(new BufferFullException("Message dropped, the publish buffer is full"));
+        }
+        return entry.future;
+    }
+
+    /**
+     * Waits for room with the BLOCK policy, returns right away with DROP_NEWEST. Must be called holding the lock.
+     */
+    private void waitForRoom(final int size) throws NSQException {
+        switch (config.getOverflowPolicy()) {
+            case BLOCK:
+                long nanos = TimeUnit.MILLISECONDS.toNanos(config.getMaxBlockMillis());
+                while (bytes + size > config.getMaxBytes()) {
+                    if (nanos <= 0 || closed) {
+                        throw new BufferFullException("The publish buffer is still full after "
+                                + config.getMaxBlockMillis() + " ms");
+                    }
+                    try {
+                        nanos = notFull.awaitNanos(nanos);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new NSQException("Interrupted while waiting for room in the publish buffer", e);
+                    }
+                }
+                return;
+            case FAIL:
+                throw new BufferFullException("The publish buffer is full");
+            default:
+                // DROP_NEWEST, the caller drops the message
+        }
+    }
+
+    /**
+     * Removes the oldest messages of all the topics until size bytes fit, size must not exceed maxBytes. Must be
+     * called holding the lock.
+     */
+    private List<Entry> dropOldest(final int size) {
+        final List<Entry> discarded = new ArrayList<>();
+        while (bytes + size > config.getMaxBytes() && !queues.isEmpty()) {
+            Deque<Entry> oldest = null;
+            for (final Deque<Entry> queue : queues.values()) {
+                if (oldest == null || queue.peekFirst().sequence < oldest.peekFirst().sequence) {
+                    oldest = queue;
+                }
+            }
+            final Entry entry = oldest.pollFirst();
+            if (oldest.isEmpty()) {
+                queues.values().remove(oldest);
+            }
+            bytes -= entry.message.length;
+            discarded.add(entry);
+        }
+        return discarded;
+    }
+
+    private void send() {
+        while (true) {
+            pendingBatches.acquireUninterruptibly();
+            final String topic;
+            final List<Entry> batch;
+            lock.lock();
+            try {
+                while (queues.isEmpty() && !closed) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (queues.isEmpty()) {
+                    pendingBatches.release();
+                    break;
+                }
+                final Iterator<Map.Entry<String, Deque<Entry>>> it = queues.entrySet().iterator();
+                final Map.Entry<String, Deque<Entry>> first = it.next();
+                topic = first.getKey();
+                batch = take(first.getValue());
+                it.remove();
+                if (!first.getValue().isEmpty()) {
+                    queues.put(topic, first.getValue());
+                }
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            publish(topic, batch);
+        }
+        // wait for the pending batches
+        pendingBatches.acquireUninterruptibly(config.getMaxPendingBatches());
+        drained.complete(null);
+    }
+
+    /**
+     * Takes the next batch of a topic, must be called holding the lock.
+     */
+    private List<Entry> take(final Deque<Entry> queue) {
+        final List<Entry> batch = new ArrayList<>(Math.min(queue.size(), config.getMaxBatchMessages()));
+        int batchBytes = 0;
+        while (!queue.isEmpty() && batch.size() < config.getMaxBatchMessages()) {
+            final int size = queue.peekFirst().message.length + 4; // every message is prefixed by its size
+            if (!batch.isEmpty() && batchBytes + size > config.getMaxBatchBytes()) {
+                break;
+            }
+            final Entry entry = queue.pollFirst();
+            batch.add(entry);
+            batchBytes += size;
+            bytes -= entry.message.length;
+        }
+        return batch;
+    }
+
+    private void publish(final String topic, final List<Entry> batch) {
+        final List<byte[]> messages = new ArrayList<>(batch.size());
+        for (final Entry entry : batch) {
+            messages.add(entry.message);
+        }
+        CompletableFuture<Void> sent;
+        try {
+            sent = producer.publishMulti(topic, messages);
+        } catch (final RuntimeException e) {
+            sent = new CompletableFuture<>();
+            sent.completeExceptionally(e);
+        }
+        sent.whenComplete((v, error) -> {
+            pendingBatches.release();
+            for (final Entry entry : batch) {
+                if (error != null) {
+                    entry.future.completeExceptionally(error);
+                } else {
+                    entry.future.complete(null);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the size of the queued messages
+     */
+    long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Refuses new messages, the returned future completes once the queued ones were sent and acknowledged.
+     */
+    CompletableFuture<Void> close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return drained;
+    }
+
+    private static class Entry {
+        private final byte[] message;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private long sequence;
+
+        Entry(final byte[] message) {
+            this.message = message;
+        }
+    }
+}
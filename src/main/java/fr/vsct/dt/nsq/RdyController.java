@@ -0,0 +1,140 @@
+package fr.vsct.dt.nsq;
+
+import fr.vsct.dt.nsq.metrics.Counter;
+import org.slf4j.Logger;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits the max-in-flight of a consumer across its connections and keeps the RDY count of every connection
+ * up to date. When there are more connections than max-in-flight, the connections allowed to receive messages
+ * are rotated on every {@link #redistribute()}.
+ */
+class RdyController {
+    private static final long MAX_BACKOFF_MILLIS = 60 * 1000;
+
+    private final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(RdyController.class);
+
+    private final List<Connection> connections = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler;
+    private volatile int maxInFlight;
+    private final long backoffMillis;
+    private final Counter backoffs;
+    private volatile int backoffAttempts = 0;
+    private volatile boolean backingOff = false;
+    private int rotation = 0;
+
+    RdyController(final ScheduledExecutorService scheduler, final int maxInFlight, final long backoffMillis,
+                  final Counter backoffs) {
+        this.scheduler = scheduler;
+        this.maxInFlight = maxInFlight;
+        this.backoffMillis = backoffMillis;
+        this.backoffs = backoffs;
+    }
+
+    void addConnection(final Connection connection) {
+        connections.add(connection);
+        redistribute();
+    }
+
+    void removeConnection(final Connection connection) {
+        connections.remove(connection);
+        redistribute();
+    }
+
+    List<Connection> getConnections() {
+        return connections;
+    }
+
+    int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    void setMaxInFlight(final int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        redistribute();
+    }
+
+    void messageReceived(final Connection connection) {
+        final int remaining = connection.messageReceived();
+        final int target = connection.getTargetReady();
+        // refresh before nsqd runs out of RDY, not once per message
+        if (!backingOff && target > 0 && (remaining <= 1 || remaining < target / 4)) {
+            connection.ready(target);
+        }
+    }
+
+    void messageCompleted(final Connection connection) {
+        connection.messageCompleted();
+    }
+
+    /**
+     * Assigns every connection its share of max-in-flight and sends RDY to the ones whose share changed.
+     */
+    synchronized void redistribute() {
+        if (backingOff) {
+            return;
+        }
+        final Connection[] all = connections.toArray(new Connection[0]);
+        if (all.length == 0) {
+            return;
+        }
+        final int max = maxInFlight;
+        if (max >= all.length) {
+            // spread the remainder over the first connections so that the sum is exactly max-in-flight
+            for (int i = 0; i < all.length; i++) {
+                update(all[i], max / all.length + (i < max % all.length ? 1 : 0));
+            }
+            return;
+        }
+        // not enough RDY for everyone, give 1 to a rotating subset of the connections
+        rotation = (rotation + max) % all.length;
+        for (int i = 0; i < all.length; i++) {
+            final int position = (i - rotation + all.length) % all.length;
+            update(all[i], position < max ? 1 : 0);
+        }
+    }
+
+    private void update(final Connection connection, final int target) {
+        if (connection.getTargetReady() != target || connection.getReadyCount() != target) {
+            connection.setTargetReady(target);
+            connection.ready(target);
+        }
+    }
+
+    /**
+     * Stops the flow of messages on every connection and resumes it after a delay that grows with
+     * consecutive calls.
+     */
+    synchronized void backoff() {
+        if (backingOff) {
+            return;
+        }
+        backingOff = true;
+        backoffAttempts++;
+        backoffs.increment();
+        final long delay = Math.min(backoffMillis << Math.min(backoffAttempts - 1, 16), MAX_BACKOFF_MILLIS);
+        LOGGER.trace("RDY 0! Halt Flow for {} ms", delay);
+        for (final Connection connection : connections) {
+            connection.ready(0);
+        }
+        scheduler.schedule(this::resume, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called when a message was processed normally, the next backoff starts again from the initial delay.
+     */
+    void success() {
+        if (backoffAttempts != 0 && !backingOff) {
+            backoffAttempts = 0;
+        }
+    }
+
+    private synchronized void resume() {
+        backingOff = false;
+        redistribute();
+    }
+}
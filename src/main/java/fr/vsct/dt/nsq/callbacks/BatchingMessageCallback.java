@@ -0,0 +1,101 @@
+package fr.vsct.dt.nsq.callbacks;
+
+import com.google.common.base.Preconditions;
+import fr.vsct.dt.nsq.NSQMessage;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers the messages of a consumer into batches handed to a {@link NSQBatchMessageCallback}. A batch is delivered
+ * once it holds maxSize messages, on the thread adding the last message, or maxWaitMillis after its first message,
+ * on an internal timer thread.
+ * <p>
+ * The consumer max-in-flight must be at least maxSize, otherwise batches only fill up to max-in-flight and are
+ * delivered after maxWaitMillis.
+ */
+public class BatchingMessageCallback implements NSQMessageCallback, Closeable {
+    private final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(BatchingMessageCallback.class);
+
+    private final NSQBatchMessageCallback callback;
+    private final int maxSize;
+    private final long maxWaitMillis;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "nsq-batch-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private List<NSQMessage> batch;
+    private ScheduledFuture<?> timeout;
+
+    public BatchingMessageCallback(final NSQBatchMessageCallback callback, final int maxSize, final long maxWaitMillis) {
+        Preconditions.checkArgument(maxSize > 0, "maxSize must be positive");
+        Preconditions.checkArgument(maxWaitMillis > 0, "maxWaitMillis must be positive");
+        this.callback = callback;
+        this.maxSize = maxSize;
+        this.maxWaitMillis = maxWaitMillis;
+        this.batch = new ArrayList<>(maxSize);
+    }
+
+    @Override
+    public void message(final NSQMessage message) {
+        final List<NSQMessage> full;
+        // the batch is delivered after the callback returns
+        message.retain();
+        synchronized (this) {
+            batch.add(message);
+            if (batch.size() == 1) {
+                timeout = timer.schedule(this::flush, maxWaitMillis, TimeUnit.MILLISECONDS);
+            }
+            if (batch.size() < maxSize) {
+                return;
+            }
+            full = take();
+        }
+        deliver(full);
+    }
+
+    /**
+     * Delivers the pending messages now.
+     */
+    public void flush() {
+        final List<NSQMessage> pending;
+        synchronized (this) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            pending = take();
+        }
+        deliver(pending);
+    }
+
+    private List<NSQMessage> take() {
+        final List<NSQMessage> taken = batch;
+        batch = new ArrayList<>(maxSize);
+        timeout.cancel(false);
+        return taken;
+    }
+
+    private void deliver(final List<NSQMessage> messages) {
+        try {
+            callback.messages(messages);
+        } catch (RuntimeException e) {
+            LOGGER.error("Batch callback failed for {} messages", messages.size(), e);
+        }
+    }
+
+    /**
+     * Delivers the pending messages and stops the timer.
+     */
+    @Override
+    public void close() {
+        flush();
+        timer.shutdown();
+    }
+}
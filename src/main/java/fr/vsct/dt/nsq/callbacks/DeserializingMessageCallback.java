@@ -0,0 +1,49 @@
+package fr.vsct.dt.nsq.callbacks;
+
+import fr.vsct.dt.nsq.NSQMessage;
+import fr.vsct.dt.nsq.serialization.NSQDeserializer;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+
+/**
+ * Deserializes the body of every message from the network buffer, without copying it to a byte array, and hands it
+ * to a {@link NSQTypedMessageCallback}. Messages that cannot be deserialized go to the failure callback, which
+ * requeues them by default.
+ */
+public class DeserializingMessageCallback<T> implements NSQMessageCallback {
+    private final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(DeserializingMessageCallback.class);
+
+    private final NSQDeserializer<? extends T> deserializer;
+    private final NSQTypedMessageCallback<? super T> callback;
+    private final NSQMessageCallback failureCallback;
+
+    public DeserializingMessageCallback(final NSQDeserializer<? extends T> deserializer,
+                                        final NSQTypedMessageCallback<? super T> callback) {
+        this(deserializer, callback, NSQMessage::requeue);
+    }
+
+    /**
+     * @param failureCallback receives the messages that cannot be deserialized, it must finish or requeue them
+     */
+    public DeserializingMessageCallback(final NSQDeserializer<? extends T> deserializer,
+                                        final NSQTypedMessageCallback<? super T> callback,
+                                        final NSQMessageCallback failureCallback) {
+        this.deserializer = deserializer;
+        this.callback = callback;
+        this.failureCallback = failureCallback;
+    }
+
+    @Override
+    public void message(final NSQMessage message) {
+        final T body;
+        try {
+            body = message.getMessage(deserializer);
+        } catch (final IOException | RuntimeException e) {
+            LOGGER.warn("Could not deserialize message {}", message.getMessageId(), e);
+            failureCallback.message(message);
+            return;
+        }
+        callback.message(message, body);
+    }
+}
@@ -0,0 +1,15 @@
+package fr.vsct.dt.nsq.callbacks;
+
+import fr.vsct.dt.nsq.NSQMessage;
+
+import java.util.List;
+
+/**
+ * Receives messages in batches, see {@link BatchingMessageCallback}. The messages can be acknowledged together with
+ * {@link NSQMessage#finishAll(java.util.Collection)} and {@link NSQMessage#requeueAll(java.util.Collection, int)}.
+ */
+@FunctionalInterface
+public interface NSQBatchMessageCallback {
+
+	public void messages(List<NSQMessage> messages);
+}
@@ -0,0 +1,12 @@
+package fr.vsct.dt.nsq.callbacks;
+
+import fr.vsct.dt.nsq.NSQMessage;
+
+/**
+ * Callback receiving the deserialized body along with the message, see {@link DeserializingMessageCallback}.
+ */
+@FunctionalInterface
+public interface NSQTypedMessageCallback<T> {
+
+	void message(NSQMessage message, T body);
+}
@@ -0,0 +1,9 @@
+package fr.vsct.dt.nsq.exceptions;
+
+public class BufferFullException extends NSQException {
+	private static final long serialVersionUID = 1L;
+
+	public BufferFullException(String message) {
+		super(message);
+	}
+}
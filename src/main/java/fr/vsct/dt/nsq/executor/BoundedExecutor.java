@@ -0,0 +1,109 @@
+package fr.vsct.dt.nsq.executor;
+
+import com.google.common.base.Preconditions;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of tasks running at the same time on an unbounded executor, such as a virtual thread per task
+ * executor. Tasks over the limit are rejected with a {@link RejectedExecutionException}, they are not queued.
+ */
+public class BoundedExecutor extends AbstractExecutorService {
+    private final ExecutorService delegate;
+    private final ResizableSemaphore permits;
+    private int maxConcurrency;
+
+    public BoundedExecutor(final ExecutorService delegate, final int maxConcurrency) {
+        Preconditions.checkArgument(maxConcurrency > 0, "maxConcurrency must be positive");
+        this.delegate = delegate;
+        this.permits = new ResizableSemaphore(maxConcurrency);
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * Changes the limit, the running tasks are not interrupted. When it is lowered, no task is started until enough
+     * of them are done.
+     */
+    public synchronized void setMaxConcurrency(final int maxConcurrency) {
+        Preconditions.checkArgument(maxConcurrency > 0, "maxConcurrency must be positive");
+        final int delta = maxConcurrency - this.maxConcurrency;
+        if (delta > 0) {
+            permits.release(delta);
+        } else if (delta < 0) {
+            permits.reduce(-delta);
+        }
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public synchronized int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        if (!permits.tryAcquire()) {
+            throw new RejectedExecutionException("Too many tasks running");
+        }
+        try {
+            delegate.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of tasks that can still be started
+     */
+    public int getAvailablePermits() {
+        return Math.max(0, permits.availablePermits());
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+
+    private static final class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        ResizableSemaphore(final int permits) {
+            super(permits);
+        }
+
+        void reduce(final int reduction) {
+            reducePermits(reduction);
+        }
+    }
+}
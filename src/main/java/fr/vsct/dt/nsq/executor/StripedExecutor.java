@@ -0,0 +1,134 @@
+package fr.vsct.dt.nsq.executor;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor with a fixed number of threads, each one with its own bounded queue. Tasks submitted with the same key
+ * always run on the same thread, one after the other. Tasks without key go to the first thread with room in its
+ * queue.
+ * <p>
+ * When the queues are full, tasks are rejected with a {@link RejectedExecutionException}, which makes an
+ * {@link fr.vsct.dt.nsq.NSQConsumer} requeue the message and back off.
+ */
+public class StripedExecutor extends AbstractExecutorService {
+    private static final AtomicInteger POOLS = new AtomicInteger();
+
+    private final ThreadPoolExecutor[] stripes;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param threads       number of threads, and of stripes
+     * @param queueCapacity number of tasks waiting for a thread, split over the stripes
+     */
+    public StripedExecutor(final int threads, final int queueCapacity) {
+        Preconditions.checkArgument(threads > 0, "threads must be positive");
+        Preconditions.checkArgument(queueCapacity >= threads, "queueCapacity must be at least the number of threads");
+        final int pool = POOLS.incrementAndGet();
+        final AtomicInteger count = new AtomicInteger();
+        final ThreadFactory threadFactory = runnable -> {
+            final Thread thread = new Thread(runnable, "nsq-callback-" + pool + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        stripes = new ThreadPoolExecutor[threads];
+        for (int i = 0; i < threads; i++) {
+            stripes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity / threads), threadFactory,
+                    new ThreadPoolExecutor.AbortPolicy());
+        }
+    }
+
+    /**
+     * Runs the task after the tasks previously submitted with an equal key.
+     *
+     * @throws RejectedExecutionException if the queue of the key is full or the executor is shut down
+     */
+    public void execute(final Object key, final Runnable task) {
+        if (key == null) {
+            execute(task);
+            return;
+        }
+        stripes[(key.hashCode() & Integer.MAX_VALUE) % stripes.length].execute(task);
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        final int start = next.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < stripes.length; i++) {
+            final ThreadPoolExecutor stripe = stripes[(start + i) % stripes.length];
+            if (stripe.getQueue().remainingCapacity() > 0 || i == stripes.length - 1) {
+                try {
+                    stripe.execute(task);
+                    return;
+                } catch (final RejectedExecutionException e) {
+                    if (i == stripes.length - 1) {
+                        throw e;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of tasks waiting in the queues
+     */
+    public int getQueueSize() {
+        int size = 0;
+        for (final ThreadPoolExecutor stripe : stripes) {
+            size += stripe.getQueue().size();
+        }
+        return size;
+    }
+
+    @Override
+    public void shutdown() {
+        for (final ThreadPoolExecutor stripe : stripes) {
+            stripe.shutdown();
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        final List<Runnable> tasks = new ArrayList<>();
+        for (final ThreadPoolExecutor stripe : stripes) {
+            tasks.addAll(stripe.shutdownNow());
+        }
+        return tasks;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return stripes[0].isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        for (final ThreadPoolExecutor stripe : stripes) {
+            if (!stripe.isTerminated()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (final ThreadPoolExecutor stripe : stripes) {
+            if (!stripe.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
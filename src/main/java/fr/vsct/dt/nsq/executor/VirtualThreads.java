@@ -0,0 +1,54 @@
+package fr.vsct.dt.nsq.executor;
+
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to the virtual threads of Java 21 through reflection, so that the client still runs on Java 8.
+ */
+public final class VirtualThreads {
+    private static final Method NEW_EXECUTOR = findNewExecutor();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if the runtime can start virtual threads
+     */
+    public static boolean isAvailable() {
+        return NEW_EXECUTOR != null;
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task, or a cached thread pool when virtual threads are not
+     * available
+     */
+    public static ExecutorService newExecutor() {
+        if (NEW_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_EXECUTOR.invoke(null);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                LoggerFactory.getLogger(VirtualThreads.class).warn("Could not create a virtual thread executor", e);
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    private static Method findNewExecutor() {
+        try {
+            final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            // virtual threads are a preview feature before Java 21, the call fails unless previews are enabled
+            ((ExecutorService) method.invoke(null)).shutdown();
+            return method;
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (IllegalAccessException | InvocationTargetException | RuntimeException e) {
+            LoggerFactory.getLogger(VirtualThreads.class).info("Virtual threads are not available: {}", e.toString());
+            return null;
+        }
+    }
+}
@@ -1,24 +1,31 @@
 package fr.vsct.dt.nsq.frames;
 
+import fr.vsct.dt.nsq.MessageId;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 
 public class MessageFrame extends NSQFrame {
 	private long timestamp;
 	private int attempts;
-	private byte[] messageId = new byte[16];
-	private byte[] messageBody;
+	private MessageId messageId;
+	private ByteBuf messageBody;
 	
 	@Override
 	public void setData(byte[] bytes) {
 		//parse the bytes
 		super.setData(bytes);
+		setData(Unpooled.wrappedBuffer(bytes));
+	}
 
-        ByteBuf buf = Unpooled.wrappedBuffer(bytes);
+	/**
+	 * Parses the header and keeps a retained slice of the inbound buffer as body, no bytes are copied.
+	 */
+	@Override
+	public void setData(ByteBuf buf) {
 		timestamp = buf.readLong();
 		attempts = buf.readShort();
-		buf.readBytes(messageId);
-		messageBody = buf.readBytes(buf.readableBytes()).array();
+		messageId = MessageId.read(buf);
+		messageBody = buf.readSlice(buf.readableBytes()).retain();
 	}
 	
 	public long getTimestamp() {
@@ -30,10 +37,26 @@ public class MessageFrame extends NSQFrame {
 	}
 
 	public byte[] getMessageId() {
+		return messageId.getBytes();
+	}
+
+	public MessageId getId() {
 		return messageId;
 	}
 
+	/**
+	 * @return a copy of the message body
+	 */
 	public byte[] getMessageBody() {
+		byte[] body = new byte[messageBody.readableBytes()];
+		messageBody.getBytes(messageBody.readerIndex(), body);
+		return body;
+	}
+
+	/**
+	 * @return the message body as a reference counted view of the inbound buffer, the caller owns it
+	 */
+	public ByteBuf getMessageBuffer() {
 		return messageBody;
 	}
 
@@ -1,5 +1,7 @@
 package fr.vsct.dt.nsq.frames;
 
+import io.netty.buffer.ByteBuf;
+
 public abstract class NSQFrame {
 
 	private int size;
@@ -31,6 +33,16 @@ public abstract class NSQFrame {
 	public void setData(byte[] data) {
 		this.data = data;
 	}
+
+	/**
+	 * Reads the frame payload from the inbound buffer. The buffer is released once the frame is decoded,
+	 * frames keeping a view on it must retain it.
+	 */
+	public void setData(ByteBuf buf) {
+		byte[] bytes = new byte[buf.readableBytes()];
+		buf.readBytes(bytes);
+		setData(bytes);
+	}
 	
 	
 }
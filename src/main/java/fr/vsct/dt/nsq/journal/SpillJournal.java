@@ -0,0 +1,365 @@
+package fr.vsct.dt.nsq.journal;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal keeping the messages a producer could not send while no nsqd was available, so that they can
+ * be published later.
+ * <p>
+ * Messages are written sequentially in memory-mapped segment files of a fixed size. Every segment starts with a
+ * header holding the position up to which its messages were published, so a journal reopened on the same directory
+ * resumes where it stopped. Segments whose messages were all published are recycled for new messages. The journal
+ * holds at most maxSegments segments, appends are refused once they are full.
+ * <p>
+ * Data reaches the page cache on every append, it survives a crash of the process but not of the host unless
+ * {@link #force()} is called.
+ */
+public class SpillJournal implements Closeable {
+    private static final String SUFFIX = ".journal";
+    private static final int MAGIC = 0x4E53514A;
+    // magic and read position
+    private static final int HEADER_SIZE = 8;
+    // length, checksum and topic length
+    private static final int RECORD_HEADER_SIZE = 10;
+    // a zero length marks the end of the written records
+    private static final int END_MARKER_SIZE = 4;
+
+    private final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(SpillJournal.class);
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    // oldest first, the last one is written to
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final Deque<Segment> free = new ArrayDeque<>();
+    private long nextSequence = 0;
+    private long pendingCount = 0;
+
+    /**
+     * Opens the journal of a directory, the messages left by a previous journal are kept.
+     *
+     * @param segmentSize size of a segment file in bytes, a message must fit in one
+     * @param maxSegments maximum number of segment files
+     */
+    public SpillJournal(final Path directory, final int segmentSize, final int maxSegments) throws IOException {
+        Preconditions.checkArgument(segmentSize > HEADER_SIZE + RECORD_HEADER_SIZE + END_MARKER_SIZE,
+                "segmentSize is too small");
+        Preconditions.checkArgument(maxSegments > 0, "maxSegments must be positive");
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        files.sort((a, b) -> Long.compare(sequenceOf(a), sequenceOf(b)));
+        for (final Path file : files) {
+            final Segment segment = new Segment(file, sequenceOf(file), map(file));
+            nextSequence = Math.max(nextSequence, segment.sequence + 1);
+            if (segment.buffer.getInt(0) != MAGIC) {
+                free.add(segment);
+                continue;
+            }
+            segment.readPosition = segment.buffer.getInt(4);
+            segment.writePosition = segment.readPosition;
+            Record record;
+            while ((record = segment.read(segment.writePosition)) != null) {
+                segment.writePosition = record.end;
+                pendingCount++;
+            }
+            segments.add(segment);
+        }
+        // only the last segment may still be written to
+        while (releaseFirst()) {
+            // until a segment has messages left
+        }
+        if (pendingCount > 0) {
+            LOGGER.info("Spill journal {} holds {} messages to publish", directory, pendingCount);
+        }
+    }
+
+    private static long sequenceOf(final Path file) {
+        final String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    private MappedByteBuffer map(final Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // the mapping stays valid once the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    /**
+     * Appends messages of a topic, either all of them or none.
+     *
+     * @return false if the journal is full
+     */
+    public synchronized boolean append(final String topic, final List<byte[]> messages) throws IOException {
+        final byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        if (!fits(topicBytes.length, messages)) {
+            return false;
+        }
+        for (final byte[] message : messages) {
+            final int size = RECORD_HEADER_SIZE + topicBytes.length + message.length;
+            Segment segment = segments.peekLast();
+            if (segment == null || segment.writePosition + size + END_MARKER_SIZE > segmentSize) {
+                segment = newSegment();
+            }
+            segment.write(topicBytes, message);
+            pendingCount++;
+        }
+        return true;
+    }
+
+    private boolean fits(final int topicLength, final List<byte[]> messages) {
+        final Segment last = segments.peekLast();
+        int count = segments.size();
+        int position = last == null ? segmentSize : last.writePosition;
+        for (final byte[] message : messages) {
+            final int size = RECORD_HEADER_SIZE + topicLength + message.length;
+            Preconditions.checkArgument(HEADER_SIZE + size + END_MARKER_SIZE <= segmentSize,
+                    "Message of %s bytes does not fit in a segment", message.length);
+            if (position + size + END_MARKER_SIZE > segmentSize) {
+                count++;
+                position = HEADER_SIZE;
+            }
+            position += size;
+        }
+        return count <= maxSegments;
+    }
+
+    private Segment newSegment() throws IOException {
+        final long sequence = nextSequence++;
+        final Path file = directory.resolve(sequence + SUFFIX);
+        Segment segment = free.pollFirst();
+        if (segment == null) {
+            segment = new Segment(file, sequence, map(file));
+        } else {
+            Files.move(segment.file, file, StandardCopyOption.ATOMIC_MOVE);
+            segment = new Segment(file, sequence, segment.buffer);
+        }
+        segment.reset();
+        segments.add(segment);
+        // the previous segment may have been fully read while it was still written to
+        releaseFirst();
+        return segment;
+    }
+
+    /**
+     * Reads the oldest unpublished messages, as long as they are on the same topic.
+     *
+     * @return the messages, or null if all the messages were published
+     */
+    public synchronized Batch next(final int maxMessages, final int maxBytes) {
+        final Segment segment = segments.peekFirst();
+        if (segment == null || segment.isFullyRead()) {
+            return null;
+        }
+        final List<byte[]> messages = new ArrayList<>();
+        String topic = null;
+        int bytes = 0;
+        int position = segment.readPosition;
+        Record record;
+        while (messages.size() < maxMessages && (record = segment.read(position)) != null) {
+            if (topic != null && !topic.equals(record.topic)) {
+                break;
+            }
+            if (!messages.isEmpty() && bytes + record.message.length > maxBytes) {
+                break;
+            }
+            topic = record.topic;
+            messages.add(record.message);
+            bytes += record.message.length;
+            position = record.end;
+        }
+        if (messages.isEmpty()) {
+            // a torn write, the rest of the segment cannot be read
+            LOGGER.warn("Skipping the unreadable end of spill journal segment {}", segment.file);
+            segment.writePosition = segment.readPosition;
+            releaseFirst();
+            return next(maxMessages, maxBytes);
+        }
+        return new Batch(segment, topic, messages, position);
+    }
+
+    /**
+     * Marks the messages of a batch as published, they are not returned by {@link #next(int, int)} anymore.
+     */
+    public synchronized void commit(final Batch batch) {
+        final Segment segment = batch.segment;
+        if (segments.peekFirst() != segment || segment.readPosition > batch.end) {
+            return;
+        }
+        segment.readPosition = batch.end;
+        segment.buffer.putInt(4, batch.end);
+        pendingCount -= batch.messages.size();
+        releaseFirst();
+    }
+
+    /**
+     * Recycles the oldest segment if all its messages were published and it is not written to anymore.
+     */
+    private boolean releaseFirst() {
+        if (segments.size() > 1 && segments.peekFirst().isFullyRead()) {
+            free.add(segments.pollFirst());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of messages not published yet
+     */
+    public synchronized long getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Writes the journal to the storage device.
+     */
+    public synchronized void force() {
+        for (final Segment segment : segments) {
+            segment.buffer.force();
+        }
+    }
+
+    @Override
+    public void close() {
+        force();
+    }
+
+    /**
+     * Messages of one topic read from the journal.
+     */
+    public static final class Batch {
+        private final Segment segment;
+        private final String topic;
+        private final List<byte[]> messages;
+        private final int end;
+
+        private Batch(final Segment segment, final String topic, final List<byte[]> messages, final int end) {
+            this.segment = segment;
+            this.topic = topic;
+            this.messages = messages;
+            this.end = end;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public List<byte[]> getMessages() {
+            return messages;
+        }
+    }
+
+    private static final class Record {
+        private final String topic;
+        private final byte[] message;
+        private final int end;
+
+        private Record(final String topic, final byte[] message, final int end) {
+            this.topic = topic;
+            this.message = message;
+            this.end = end;
+        }
+    }
+
+    private final class Segment {
+        private final Path file;
+        private final long sequence;
+        private final MappedByteBuffer buffer;
+        private int readPosition = HEADER_SIZE;
+        private int writePosition = HEADER_SIZE;
+
+        private Segment(final Path file, final long sequence, final MappedByteBuffer buffer) {
+            this.file = file;
+            this.sequence = sequence;
+            this.buffer = buffer;
+        }
+
+        void reset() {
+            readPosition = HEADER_SIZE;
+            writePosition = HEADER_SIZE;
+            buffer.putInt(HEADER_SIZE, 0);
+            buffer.putInt(4, HEADER_SIZE);
+            buffer.putInt(0, MAGIC);
+        }
+
+        boolean isFullyRead() {
+            return readPosition >= writePosition;
+        }
+
+        /**
+         * Record layout: length of the topic and message, CRC32 of them, topic length, topic, message.
+         */
+        void write(final byte[] topic, final byte[] message) {
+            final int position = writePosition;
+            final int length = topic.length + message.length;
+            final CRC32 crc = new CRC32();
+            crc.update(topic);
+            crc.update(message);
+            buffer.position(position + RECORD_HEADER_SIZE);
+            buffer.put(topic);
+            buffer.put(message);
+            buffer.putInt(position + RECORD_HEADER_SIZE + length, 0);
+            buffer.putShort(position + 8, (short) topic.length);
+            buffer.putInt(position + 4, (int) crc.getValue());
+            // the length is written last, a reader never sees a partial record
+            buffer.putInt(position, length);
+            writePosition = position + RECORD_HEADER_SIZE + length;
+        }
+
+        /**
+         * @return the record at this position, or null if there is none or it is corrupted
+         */
+        Record read(final int position) {
+            if (position + RECORD_HEADER_SIZE > segmentSize) {
+                return null;
+            }
+            final int length = buffer.getInt(position);
+            final int topicLength = buffer.getShort(position + 8) & 0xFFFF;
+            if (length <= 0 || topicLength > length || position + RECORD_HEADER_SIZE + length > segmentSize) {
+                return null;
+            }
+            final byte[] topic = new byte[topicLength];
+            final byte[] message = new byte[length - topicLength];
+            final ByteBuffer view = buffer.duplicate();
+            view.position(position + RECORD_HEADER_SIZE);
+            view.get(topic);
+            view.get(message);
+            final CRC32 crc = new CRC32();
+            crc.update(topic);
+            crc.update(message);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                return null;
+            }
+            return new Record(new String(topic, StandardCharsets.UTF_8), message, position + RECORD_HEADER_SIZE + length);
+        }
+    }
+}
@@ -9,14 +9,48 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
+/**
+ * Queries all the nsqlookupd servers in parallel and merges their answers. Every query is bounded by the connect and
+ * read timeouts. Results are cached per topic; when no server answers, the last known result is returned even if it
+ * is older than the cache TTL. Several topics are looked up at once with the /nodes endpoint.
+ */
 public class DefaultNSQLookup implements NSQLookup {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final AtomicInteger THREADS = new AtomicInteger();
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "nsq-lookup-" + THREADS.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private final Logger LOGGER = LoggerFactory.getLogger(DefaultNSQLookup.class);
 
-    Set<String> addresses = Sets.newHashSet();
+    Set<String> addresses = Sets.newConcurrentHashSet();
+    private final Map<String, CachedLookup> cache = new ConcurrentHashMap<>();
+    private int connectTimeoutMillis = 2000;
+    private int readTimeoutMillis = 5000;
+    private long cacheTtlMillis = 5000;
 
     @Override
     public void addLookupAddress(String addr, int port) {
@@ -29,32 +63,196 @@ public class DefaultNSQLookup implements NSQLookup {
 
     @Override
     public Set<ServerAddress> lookup(String topic) {
+        CachedLookup cached = cache.get(topic);
+        if (cached != null && System.currentTimeMillis() - cached.time < cacheTtlMillis) {
+            return Sets.newHashSet(cached.addresses);
+        }
+
+        List<Set<ServerAddress>> answers = queryAll(addr -> query(addr, topic));
         Set<ServerAddress> addresses = Sets.newHashSet();
+        answers.forEach(addresses::addAll);
+        return resolve(topic, !answers.isEmpty(), addresses);
+    }
+
+    /**
+     * Answers all the topics with one /nodes query per server, unless they are all cached.
+     */
+    @Override
+    public Map<String, Set<ServerAddress>> lookup(Collection<String> topics) {
+        Map<String, Set<ServerAddress>> result = new HashMap<>();
+        long now = System.currentTimeMillis();
+        for (String topic : topics) {
+            CachedLookup cached = cache.get(topic);
+            if (cached == null || now - cached.time >= cacheTtlMillis) {
+                result.clear();
+                break;
+            }
+            result.put(topic, Sets.newHashSet(cached.addresses));
+        }
+        if (result.size() == topics.size()) {
+            return result;
+        }
 
+        List<Map<String, Set<ServerAddress>>> answers = queryAll(this::queryNodes);
+        for (String topic : topics) {
+            Set<ServerAddress> addresses = Sets.newHashSet();
+            for (Map<String, Set<ServerAddress>> answer : answers) {
+                addresses.addAll(answer.getOrDefault(topic, Collections.emptySet()));
+            }
+            result.put(topic, resolve(topic, !answers.isEmpty(), addresses));
+        }
+        return result;
+    }
+
+    /**
+     * Runs a query on every server in parallel.
+     *
+     * @return the answers of the servers which answered before the deadline
+     */
+    private <T> List<T> queryAll(Function<String, T> query) {
+        List<CompletableFuture<T>> queries = new ArrayList<>();
         for (String addr : getLookupAddresses()) {
+            queries.add(CompletableFuture.supplyAsync(() -> query.apply(addr), EXECUTOR));
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectTimeoutMillis + readTimeoutMillis);
+        List<T> answers = new ArrayList<>();
+        for (CompletableFuture<T> future : queries) {
             try {
-                ObjectMapper mapper = new ObjectMapper();
-                String topicEncoded = URLEncoder.encode(topic, Charsets.UTF_8.name());
-                JsonNode jsonNode = mapper.readTree(new URL(addr + "/lookup?topic=" + topicEncoded));
-                LOGGER.debug("Server connection information: " + jsonNode.toString());
-                JsonNode producers = jsonNode.get("data").get("producers");
-                for (JsonNode node : producers) {
-                    String host = node.get("broadcast_address").asText();
-                    ServerAddress address = new ServerAddress(host, node.get("tcp_port").asInt());
-                    addresses.add(address);
-                }
-            } catch (IOException e) {
-                LOGGER.warn("Unable to connect to address {} for topic {}", addr, topic);
-                LOGGER.debug(e.getMessage());
+                answers.add(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            } catch (ExecutionException e) {
+                // already logged by the query
+            } catch (TimeoutException e) {
+                future.cancel(true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
             }
         }
-        if (addresses.isEmpty()) {
-            LOGGER.warn("Unable to connect to any NSQ Lookup servers, servers tried: {} on topic {} ", this.addresses, topic);
+        return answers;
+    }
+
+    /**
+     * Caches the addresses if a server answered, otherwise falls back to the last known addresses.
+     */
+    private Set<ServerAddress> resolve(String topic, boolean answered, Set<ServerAddress> addresses) {
+        if (answered) {
+            cache.put(topic, new CachedLookup(Collections.unmodifiableSet(addresses)));
+            return addresses;
+        }
+        CachedLookup cached = cache.get(topic);
+        if (cached != null) {
+            LOGGER.warn("Unable to connect to any NSQ Lookup servers, servers tried: {} on topic {}, using the result of {} ms ago",
+                    this.addresses, topic, System.currentTimeMillis() - cached.time);
+            return Sets.newHashSet(cached.addresses);
         }
+        LOGGER.warn("Unable to connect to any NSQ Lookup servers, servers tried: {} on topic {} ", this.addresses, topic);
         return addresses;
     }
 
+    private Set<ServerAddress> query(String addr, String topic) {
+        Set<ServerAddress> addresses = Sets.newHashSet();
+        try {
+            String topicEncoded = URLEncoder.encode(topic, Charsets.UTF_8.name());
+            HttpURLConnection connection = (HttpURLConnection) new URL(addr + "/lookup?topic=" + topicEncoded).openConnection();
+            connection.setConnectTimeout(connectTimeoutMillis);
+            connection.setReadTimeout(readTimeoutMillis);
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                // the topic is not registered on this server
+                drain(connection.getErrorStream());
+                return addresses;
+            }
+            JsonNode jsonNode;
+            try (InputStream in = connection.getInputStream()) {
+                jsonNode = MAPPER.readTree(in);
+            }
+            LOGGER.debug("Server connection information: {}", jsonNode);
+            // nsqlookupd before 1.0 wraps the response in a data field
+            JsonNode data = jsonNode.has("data") ? jsonNode.get("data") : jsonNode;
+            for (JsonNode node : data.get("producers")) {
+                String host = node.get("broadcast_address").asText();
+                addresses.add(new ServerAddress(host, node.get("tcp_port").asInt()));
+            }
+            return addresses;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Unable to connect to address {} for topic {}", addr, topic);
+            LOGGER.debug(e.getMessage());
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Map<String, Set<ServerAddress>> queryNodes(String addr) {
+        Map<String, Set<ServerAddress>> topics = new HashMap<>();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(addr + "/nodes").openConnection();
+            connection.setConnectTimeout(connectTimeoutMillis);
+            connection.setReadTimeout(readTimeoutMillis);
+            JsonNode jsonNode;
+            try (InputStream in = connection.getInputStream()) {
+                jsonNode = MAPPER.readTree(in);
+            }
+            LOGGER.debug("Server nodes: {}", jsonNode);
+            JsonNode data = jsonNode.has("data") ? jsonNode.get("data") : jsonNode;
+            for (JsonNode node : data.get("producers")) {
+                ServerAddress address = new ServerAddress(node.get("broadcast_address").asText(),
+                        node.get("tcp_port").asInt());
+                JsonNode tombstones = node.path("tombstones");
+                JsonNode nodeTopics = node.get("topics");
+                for (int i = 0; i < nodeTopics.size(); i++) {
+                    // a tombstoned topic is being removed from this node, /lookup does not return it either
+                    if (!tombstones.path(i).asBoolean(false)) {
+                        topics.computeIfAbsent(nodeTopics.get(i).asText(), t -> Sets.newHashSet()).add(address);
+                    }
+                }
+            }
+            return topics;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Unable to get the nodes of address {}", addr);
+            LOGGER.debug(e.getMessage());
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        // reading the body lets the connection be reused
+        if (in != null) {
+            try (InputStream stream = in) {
+                byte[] buffer = new byte[1024];
+                while (stream.read(buffer) >= 0) {
+                    // discard
+                }
+            }
+        }
+    }
+
     public Set<String> getLookupAddresses() {
         return addresses;
     }
+
+    public DefaultNSQLookup setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        return this;
+    }
+
+    public DefaultNSQLookup setReadTimeoutMillis(int readTimeoutMillis) {
+        this.readTimeoutMillis = readTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * How long the result of a lookup is reused before the servers are queried again, 0 disables the cache.
+     * Expired results are still used when no server answers.
+     */
+    public DefaultNSQLookup setCacheTtlMillis(long cacheTtlMillis) {
+        this.cacheTtlMillis = cacheTtlMillis;
+        return this;
+    }
+
+    private static class CachedLookup {
+        final Set<ServerAddress> addresses;
+        final long time = System.currentTimeMillis();
+
+        CachedLookup(Set<ServerAddress> addresses) {
+            this.addresses = addresses;
+        }
+    }
 }
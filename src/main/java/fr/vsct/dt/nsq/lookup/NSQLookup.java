@@ -2,10 +2,26 @@ package fr.vsct.dt.nsq.lookup;
 
 import fr.vsct.dt.nsq.ServerAddress;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 public interface NSQLookup {
     Set<ServerAddress> lookup(String topic);
 
+    /**
+     * Looks several topics up at once. Implementations may answer all of them with a single query per server.
+     *
+     * @return the nsqd addresses of every topic
+     */
+    default Map<String, Set<ServerAddress>> lookup(Collection<String> topics) {
+        final Map<String, Set<ServerAddress>> result = new HashMap<>();
+        for (final String topic : topics) {
+            result.put(topic, lookup(topic));
+        }
+        return result;
+    }
+
     void addLookupAddress(String addr, int port);
 }
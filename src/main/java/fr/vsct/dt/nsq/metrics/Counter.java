@@ -0,0 +1,10 @@
+package fr.vsct.dt.nsq.metrics;
+
+public interface Counter {
+
+    void increment();
+
+    void add(long n);
+
+    long getCount();
+}
@@ -0,0 +1,60 @@
+package fr.vsct.dt.nsq.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+
+/**
+ * In memory registry built on {@link java.util.concurrent.atomic.LongAdder}, updates never lock. The metrics can
+ * be read with the getters to be exported to any monitoring system.
+ */
+public class DefaultMetricsRegistry implements MetricsRegistry {
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    @Override
+    public Counter counter(final String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdderCounter());
+    }
+
+    @Override
+    public Histogram histogram(final String name) {
+        return histograms.computeIfAbsent(name, n -> new LongAdderHistogram());
+    }
+
+    @Override
+    public void gauge(final String name, final LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    @Override
+    public void remove(final String name) {
+        counters.remove(name);
+        histograms.remove(name);
+        gauges.remove(name);
+    }
+
+    public SortedMap<String, Counter> getCounters() {
+        return Collections.unmodifiableSortedMap(new TreeMap<>(counters));
+    }
+
+    public SortedMap<String, Histogram> getHistograms() {
+        return Collections.unmodifiableSortedMap(new TreeMap<>(histograms));
+    }
+
+    /**
+     * @return the current value of every gauge
+     */
+    public SortedMap<String, Long> getGauges() {
+        final SortedMap<String, Long> values = new TreeMap<>();
+        for (final Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        return Collections.unmodifiableSortedMap(values);
+    }
+}
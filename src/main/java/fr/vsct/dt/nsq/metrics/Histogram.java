@@ -0,0 +1,21 @@
+package fr.vsct.dt.nsq.metrics;
+
+/**
+ * Distribution of recorded values, latencies in nanoseconds or sizes in bytes.
+ */
+public interface Histogram {
+
+    void record(long value);
+
+    long getCount();
+
+    double getMean();
+
+    long getMax();
+
+    /**
+     * @param percentile between 0 and 100
+     * @return an upper bound of the value below which this percentage of the recorded values falls
+     */
+    long getPercentile(double percentile);
+}
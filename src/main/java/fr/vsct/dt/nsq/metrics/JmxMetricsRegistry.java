@@ -0,0 +1,137 @@
+package fr.vsct.dt.nsq.metrics;
+
+import org.slf4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.function.LongSupplier;
+
+/**
+ * {@link DefaultMetricsRegistry} publishing each metric as an MBean named
+ * {@code fr.vsct.dt.nsq:type=<Counter|Histogram|Gauge>,name=<metric name>}.
+ */
+public class JmxMetricsRegistry extends DefaultMetricsRegistry {
+    private static final String DOMAIN = "fr.vsct.dt.nsq";
+
+    private final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(JmxMetricsRegistry.class);
+
+    private final MBeanServer server;
+
+    public JmxMetricsRegistry() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public JmxMetricsRegistry(final MBeanServer server) {
+        this.server = server;
+    }
+
+    @Override
+    public synchronized Counter counter(final String name) {
+        final Counter counter = super.counter(name);
+        register("Counter", name, counter::getCount, CounterMBean.class);
+        return counter;
+    }
+
+    @Override
+    public synchronized Histogram histogram(final String name) {
+        final Histogram histogram = super.histogram(name);
+        register("Histogram", name, new HistogramMBean() {
+            @Override
+            public long getCount() {
+                return histogram.getCount();
+            }
+
+            @Override
+            public double getMean() {
+                return histogram.getMean();
+            }
+
+            @Override
+            public long getMax() {
+                return histogram.getMax();
+            }
+
+            @Override
+            public long get50thPercentile() {
+                return histogram.getPercentile(50);
+            }
+
+            @Override
+            public long get99thPercentile() {
+                return histogram.getPercentile(99);
+            }
+
+            @Override
+            public long get999thPercentile() {
+                return histogram.getPercentile(99.9);
+            }
+        }, HistogramMBean.class);
+        return histogram;
+    }
+
+    @Override
+    public synchronized void gauge(final String name, final LongSupplier value) {
+        super.gauge(name, value);
+        unregister("Gauge", name);
+        register("Gauge", name, value::getAsLong, GaugeMBean.class);
+    }
+
+    @Override
+    public synchronized void remove(final String name) {
+        super.remove(name);
+        unregister("Counter", name);
+        unregister("Histogram", name);
+        unregister("Gauge", name);
+    }
+
+    private <T> void register(final String type, final String name, final T mbean, final Class<T> mbeanInterface) {
+        try {
+            final ObjectName objectName = objectName(type, name);
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(new StandardMBean(mbean, mbeanInterface), objectName);
+            }
+        } catch (final JMException e) {
+            LOGGER.warn("Could not register metric {} in JMX", name, e);
+        }
+    }
+
+    private void unregister(final String type, final String name) {
+        try {
+            final ObjectName objectName = objectName(type, name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (final JMException e) {
+            LOGGER.warn("Could not unregister metric {} from JMX", name, e);
+        }
+    }
+
+    private static ObjectName objectName(final String type, final String name) throws JMException {
+        return new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+    }
+
+    public interface CounterMBean {
+        long getCount();
+    }
+
+    public interface GaugeMBean {
+        long getValue();
+    }
+
+    public interface HistogramMBean {
+        long getCount();
+
+        double getMean();
+
+        long getMax();
+
+        long get50thPercentile();
+
+        long get99thPercentile();
+
+        long get999thPercentile();
+    }
+}
@@ -0,0 +1,22 @@
+package fr.vsct.dt.nsq.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+class LongAdderCounter implements Counter {
+    private final LongAdder count = new LongAdder();
+
+    @Override
+    public void increment() {
+        count.increment();
+    }
+
+    @Override
+    public void add(final long n) {
+        count.add(n);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+}
@@ -0,0 +1,30 @@
+package fr.vsct.dt.nsq.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Creates and holds the metrics of the client. Metrics are identified by a dotted name, asking twice for the same
+ * name returns the same metric. Durations are recorded in nanoseconds.
+ * <p>
+ * Implementations must be thread safe and cheap to update, metrics are updated on the network threads.
+ *
+ * @see NoopMetricsRegistry
+ * @see DefaultMetricsRegistry
+ * @see JmxMetricsRegistry
+ */
+public interface MetricsRegistry {
+
+    Counter counter(String name);
+
+    Histogram histogram(String name);
+
+    /**
+     * Registers a value read when the metrics are reported, replacing any gauge with the same name.
+     */
+    void gauge(String name, LongSupplier value);
+
+    /**
+     * Removes a metric, used when the object it measures, a connection for instance, goes away.
+     */
+    void remove(String name);
+}
@@ -0,0 +1,72 @@
+package fr.vsct.dt.nsq.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Registry discarding every value, used when no registry is configured.
+ */
+public final class NoopMetricsRegistry implements MetricsRegistry {
+    public static final NoopMetricsRegistry INSTANCE = new NoopMetricsRegistry();
+
+    private static final Counter COUNTER = new Counter() {
+        @Override
+        public void increment() {
+        }
+
+        @Override
+        public void add(final long n) {
+        }
+
+        @Override
+        public long getCount() {
+            return 0;
+        }
+    };
+
+    private static final Histogram HISTOGRAM = new Histogram() {
+        @Override
+        public void record(final long value) {
+        }
+
+        @Override
+        public long getCount() {
+            return 0;
+        }
+
+        @Override
+        public double getMean() {
+            return 0;
+        }
+
+        @Override
+        public long getMax() {
+            return 0;
+        }
+
+        @Override
+        public long getPercentile(final double percentile) {
+            return 0;
+        }
+    };
+
+    private NoopMetricsRegistry() {
+    }
+
+    @Override
+    public Counter counter(final String name) {
+        return COUNTER;
+    }
+
+    @Override
+    public Histogram histogram(final String name) {
+        return HISTOGRAM;
+    }
+
+    @Override
+    public void gauge(final String name, final LongSupplier value) {
+    }
+
+    @Override
+    public void remove(final String name) {
+    }
+}
@@ -25,8 +25,7 @@ public class NSQDecoder extends MessageToMessageDecoder<ByteBuf> {
 			throw new Exception("Bad frame id from server (" + id + ").  disconnect!");
 		}
 		frame.setSize(size);
-		ByteBuf bytes = in.readBytes(frame.getSize() - 4); //subtract 4 because the frame id is included
-		frame.setData(bytes.array());
+		frame.setData(in.readSlice(frame.getSize() - 4)); //subtract 4 because the frame id is included
 		out.add(frame);
 	}
 
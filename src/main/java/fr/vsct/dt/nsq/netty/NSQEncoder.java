@@ -1,7 +1,10 @@
 package fr.vsct.dt.nsq.netty;
 
+import fr.vsct.dt.nsq.MessageId;
 import fr.vsct.dt.nsq.NSQCommand;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageEncoder;
@@ -10,27 +13,121 @@ import java.util.List;
 
 public class NSQEncoder extends MessageToMessageEncoder<NSQCommand> {
 
+	/**
+	 * Bodies smaller than this are copied next to their size, bigger ones are wrapped in a composite buffer.
+	 */
+	private static final int COPY_THRESHOLD = 1024;
+
 	@Override
 	protected void encode(ChannelHandlerContext ctx, NSQCommand message, List<Object> out) throws Exception {
-		ByteBuf buf = Unpooled.buffer();
-		buf.writeBytes(message.getLine().getBytes("utf8"));
-		
+		List<byte[]> data = message.getData();
+		ByteBuf buf = ctx.alloc().buffer(estimateSize(message));
+		writeLine(buf, message);
+		ByteBuf body = message.takeBody();
+		if (body != null) {
+			// serialized by the producer, sent as is
+			buf.writeInt(body.readableBytes());
+			CompositeByteBuf frame = ctx.alloc().compositeBuffer(2);
+			frame.addComponent(buf);
+			frame.addComponent(body);
+			frame.writerIndex(frame.capacity());
+			out.add(frame);
+			return;
+		}
+		if (data.isEmpty()) {
+			out.add(buf);
+			return;
+		}
+
 		//for MPUB messages.
-		if (message.getData().size() > 1) {
+		if (data.size() > 1) {
 			//write total bodysize and message size
 			int bodySize = 4; //4 for total messages int.
-			for (byte[] data : message.getData()) {
+			for (byte[] bytes : data) {
 				bodySize += 4; //message size
-				bodySize += data.length;
+				bodySize += bytes.length;
 			}
 			buf.writeInt(bodySize);
-			buf.writeInt(message.getData().size());
+			buf.writeInt(data.size());
+		}
+
+		CompositeByteBuf frame = null;
+		for (int i = 0; i < data.size(); i++) {
+			byte[] bytes = data.get(i);
+			buf.writeInt(bytes.length);
+			if (bytes.length < COPY_THRESHOLD) {
+				buf.writeBytes(bytes);
+				continue;
+			}
+			if (frame == null) {
+				frame = ctx.alloc().compositeBuffer(2 * data.size() + 1);
+			}
+			frame.addComponent(buf);
+			frame.addComponent(Unpooled.wrappedBuffer(bytes));
+			buf = ctx.alloc().buffer(estimateSize(data.subList(i + 1, data.size())));
+		}
+		if (frame == null) {
+			out.add(buf);
+			return;
+		}
+		if (buf.isReadable()) {
+			frame.addComponent(buf);
+		} else {
+			buf.release();
+		}
+		frame.writerIndex(frame.capacity());
+		out.add(frame);
+	}
+
+	private void writeLine(ByteBuf buf, NSQCommand message) {
+		byte[] name = message.getName();
+		if (name == null) {
+			ByteBufUtil.writeUtf8(buf, message.getLine());
+			return;
 		}
-		
-		for (byte[] data : message.getData()) {
-			buf.writeInt(data.length);
-			buf.writeBytes(data);
+		buf.writeBytes(name);
+		for (Object param : message.getParams()) {
+			buf.writeByte(' ');
+			if (param instanceof MessageId) {
+				((MessageId) param).writeTo(buf);
+			} else if (param instanceof byte[]) {
+				buf.writeBytes((byte[]) param);
+			} else if (param instanceof Number) {
+				writeNumber(buf, ((Number) param).longValue());
+			} else {
+				ByteBufUtil.writeAscii(buf, (CharSequence) param);
+			}
+		}
+		buf.writeByte('\n');
+	}
+
+	private static void writeNumber(ByteBuf buf, long value) {
+		if (value < 0) {
+			buf.writeByte('-');
+			value = -value;
+		}
+		long divisor = 1;
+		while (divisor <= value / 10) {
+			divisor *= 10;
+		}
+		for (; divisor > 0; divisor /= 10) {
+			buf.writeByte((int) ('0' + (value / divisor) % 10));
+		}
+	}
+
+	private static int estimateSize(NSQCommand message) {
+		int size = message.getName() == null ? message.getLine().length() : 64;
+		return size + 8 + estimateSize(message.getData());
+	}
+
+	private static int estimateSize(List<byte[]> data) {
+		int size = 0;
+		for (byte[] bytes : data) {
+			size += 4;
+			if (bytes.length < COPY_THRESHOLD) {
+				size += bytes.length;
+			}
 		}
-		out.add(buf);
+		return size;
 	}
 }
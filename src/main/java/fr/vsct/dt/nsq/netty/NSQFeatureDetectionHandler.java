@@ -3,6 +3,7 @@ package fr.vsct.dt.nsq.netty;
 import fr.vsct.dt.nsq.Connection;
 import fr.vsct.dt.nsq.frames.NSQFrame;
 import fr.vsct.dt.nsq.frames.ResponseFrame;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.SimpleChannelInboundHandler;
@@ -23,35 +24,28 @@ public class NSQFeatureDetectionHandler extends SimpleChannelInboundHandler<NSQF
     private boolean compression;
     private boolean snappy;
     private boolean deflate;
-    private boolean finished;
+    private boolean reinstallDefaultDecoder = true;
+    // OK responses nsqd still sends to confirm the upgrades, -1 until the IDENTIFY response is read
+    private int upgrades = -1;
+    private NSQFrame identifyResponse;
 
+    /**
+     * nsqd answers IDENTIFY, then sends one OK once TLS is set up and one once compression is. The IDENTIFY
+     * response is only passed on after those OKs, so that they are never matched against a command and the
+     * connection is not used before its pipeline is complete.
+     */
     @Override
     protected void channelRead0(final ChannelHandlerContext ctx, final NSQFrame msg) throws Exception {
-        LOGGER.info("IdentifyResponse: " + new String(msg.getData()));
-        boolean reinstallDefaultDecoder = true;
-        if (msg instanceof ResponseFrame) {
-            ResponseFrame response = (ResponseFrame) msg;
-            ChannelPipeline pipeline = ctx.channel().pipeline();
-            final Connection con = ctx.channel().attr(Connection.STATE).get();
+        if (!(msg instanceof ResponseFrame)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        final ResponseFrame response = (ResponseFrame) msg;
+        final ChannelPipeline pipeline = ctx.channel().pipeline();
+        final Connection con = ctx.channel().attr(Connection.STATE).get();
+        if (upgrades < 0) {
+            LOGGER.info("IdentifyResponse: " + response.getMessage());
             parseIdentify(response.getMessage());
-
-            if (response.getMessage().equals("OK")) {
-                if (finished) {
-                    return;
-                }
-                //round 2
-                if (snappy) {
-                    reinstallDefaultDecoder = installSnappyDecoder(pipeline);
-                }
-                if (deflate) {
-                    reinstallDefaultDecoder = installDeflateDecoder(pipeline, con);
-                }
-                eject(reinstallDefaultDecoder, pipeline);
-                if (ssl) {
-                    ((SslHandler) pipeline.get("SSLHandler")).setSingleDecode(false);
-                }
-                return;
-            }
             if (ssl) {
                 LOGGER.info("Adding SSL to pipline");
                 SSLEngine sslEngine = con.getConfig().getSslContext().newEngine(ctx.channel().alloc());
@@ -59,31 +53,68 @@ public class NSQFeatureDetectionHandler extends SimpleChannelInboundHandler<NSQF
                 SslHandler sslHandler = new SslHandler(sslEngine, false);
                 sslHandler.setSingleDecode(true);
                 pipeline.addBefore("LengthFieldBasedFrameDecoder", "SSLHandler", sslHandler);
-                if (snappy) {
-                    pipeline.addBefore("NSQEncoder", "SnappyEncoder", new SnappyFramedEncoder());
-                }
-                if (deflate) {
-                    pipeline.addBefore("NSQEncoder", "DeflateEncoder", ZlibCodecFactory.newZlibEncoder(ZlibWrapper.NONE,
-                            con.getConfig().getDeflateLevel()));
-                }
             }
-            if (!ssl && snappy) {
+            if (snappy) {
                 pipeline.addBefore("NSQEncoder", "SnappyEncoder", new SnappyFramedEncoder());
-                reinstallDefaultDecoder = installSnappyDecoder(pipeline);
             }
-            if (!ssl && deflate) {
+            if (deflate) {
                 pipeline.addBefore("NSQEncoder", "DeflateEncoder", ZlibCodecFactory.newZlibEncoder(ZlibWrapper.NONE,
                         con.getConfig().getDeflateLevel()));
-                reinstallDefaultDecoder = installDeflateDecoder(pipeline, con);
             }
-            if (response.getMessage().contains("version") && finished) {
-                eject(reinstallDefaultDecoder, pipeline);
+            upgrades = (ssl ? 1 : 0) + (compression ? 1 : 0);
+            if (upgrades == 0) {
+                eject(pipeline);
+                ctx.fireChannelRead(msg);
+            } else {
+                identifyResponse = msg;
+                if (!ssl) {
+                    // without TLS the OK confirming compression is already compressed, and may be read as soon
+                    // as the decoders are installed
+                    installDecoders(pipeline);
+                }
             }
+            return;
+        }
+        if (response.getMessage().equals("OK")) {
+            if (--upgrades == 0) {
+                eject(pipeline);
+                if (ssl) {
+                    ((SslHandler) pipeline.get("SSLHandler")).setSingleDecode(false);
+                }
+                ctx.fireChannelRead(identifyResponse);
+            } else {
+                // TLS is set up, the next OK is compressed
+                installDecoders(pipeline);
+            }
+            return;
         }
         ctx.fireChannelRead(msg);
     }
 
-    private void eject(final boolean reinstallDefaultDecoder, final ChannelPipeline pipeline) {
+    private void installDecoders(final ChannelPipeline pipeline) {
+        if (snappy) {
+            LOGGER.info("Adding snappy to pipeline");
+            installDecompressor(pipeline, "SnappyDecoder", new SnappyFramedDecoder());
+        }
+        if (deflate) {
+            LOGGER.info("Adding deflate to pipline");
+            installDecompressor(pipeline, "DeflateDecoder", ZlibCodecFactory.newZlibDecoder(ZlibWrapper.NONE));
+        }
+    }
+
+    /**
+     * Frames are decoded after decompression, as several of them can share a compressed block. Removing the
+     * first frame decoder hands the bytes it already read, which are compressed, to the decompressor.
+     */
+    private void installDecompressor(final ChannelPipeline pipeline, final String name, final ChannelHandler decoder) {
+        pipeline.addAfter("LengthFieldBasedFrameDecoder", name, decoder);
+        pipeline.addAfter(name, "DecompressedFrameDecoder",
+                new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, Integer.BYTES));
+        reinstallDefaultDecoder = false;
+        pipeline.remove("LengthFieldBasedFrameDecoder");
+    }
+
+    private void eject(final ChannelPipeline pipeline) {
         // ok we read only the the first message to set up the pipline, ejecting now!
         pipeline.remove(this);
         if (reinstallDefaultDecoder) {
@@ -93,20 +124,6 @@ public class NSQFeatureDetectionHandler extends SimpleChannelInboundHandler<NSQF
         }
     }
 
-    private boolean installDeflateDecoder(final ChannelPipeline pipeline, final Connection con) {
-        finished = true;
-        LOGGER.info("Adding deflate to pipline");
-        pipeline.replace("LengthFieldBasedFrameDecoder", "DeflateDecoder", ZlibCodecFactory.newZlibDecoder(ZlibWrapper.NONE));
-        return false;
-    }
-
-    private boolean installSnappyDecoder(final ChannelPipeline pipeline) {
-        finished = true;
-        LOGGER.info("Adding snappy to pipeline");
-        pipeline.replace("LengthFieldBasedFrameDecoder", "SnappyDecoder", new SnappyFramedDecoder());
-        return false;
-    }
-
     private void parseIdentify(final String message) {
         if (message.equals("OK")) {
             return;
@@ -122,8 +139,5 @@ public class NSQFeatureDetectionHandler extends SimpleChannelInboundHandler<NSQF
             deflate = true;
             compression = true;
         }
-        if (!ssl && !compression) {
-            finished = true;
-        }
     }
 }
@@ -0,0 +1,37 @@
+package fr.vsct.dt.nsq.netty;
+
+import fr.vsct.dt.nsq.metrics.Counter;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * Counts the bytes read from and written to the socket, it sits first in the pipeline so TLS and compression
+ * are included.
+ */
+public class NSQMetricsHandler extends ChannelDuplexHandler {
+    private final Counter bytesIn;
+    private final Counter bytesOut;
+
+    public NSQMetricsHandler(final Counter bytesIn, final Counter bytesOut) {
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+        if (msg instanceof ByteBuf) {
+            bytesIn.add(((ByteBuf) msg).readableBytes());
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) throws Exception {
+        if (msg instanceof ByteBuf) {
+            bytesOut.add(((ByteBuf) msg).readableBytes());
+        }
+        super.write(ctx, msg, promise);
+    }
+}
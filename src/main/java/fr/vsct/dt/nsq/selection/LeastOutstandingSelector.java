@@ -0,0 +1,24 @@
+package fr.vsct.dt.nsq.selection;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uses the available node with the fewest requests waiting for a response. Ties are broken in turn, so that idle
+ * nodes share the load.
+ */
+public class LeastOutstandingSelector implements NodeSelector {
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Override
+    public Node select(final Node[] nodes, final long nowNanos) {
+        final int start = next.getAndIncrement();
+        Node best = null;
+        for (int i = 0; i < nodes.length; i++) {
+            final Node node = nodes[Math.floorMod(start + i, nodes.length)];
+            if (node.isAvailable(nowNanos) && (best == null || node.getOutstanding() < best.getOutstanding())) {
+                best = node;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,95 @@
+package fr.vsct.dt.nsq.selection;
+
+import fr.vsct.dt.nsq.ServerAddress;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A nsqd node as seen by the producer: its pending requests, its average latency and whether it is ejected.
+ */
+public final class Node {
+    /**
+     * Weight of a new sample in the latency average.
+     */
+    private static final double ALPHA = 0.2;
+
+    private final ServerAddress address;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong latencyNanos = new AtomicLong();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long ejectedUntilNanos = 0;
+    private volatile boolean ejected = false;
+
+    Node(final ServerAddress address) {
+        this.address = address;
+    }
+
+    public ServerAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return the number of requests sent to this node and not answered yet
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return the exponentially weighted moving average of the response time, 0 until the first response
+     */
+    public long getLatencyNanos() {
+        return latencyNanos.get();
+    }
+
+    /**
+     * @return false while the node is ejected
+     */
+    public boolean isAvailable(final long nowNanos) {
+        return !ejected || nowNanos - ejectedUntilNanos >= 0;
+    }
+
+    void started() {
+        outstanding.incrementAndGet();
+    }
+
+    void completed() {
+        outstanding.decrementAndGet();
+    }
+
+    void recordLatency(final long nanos) {
+        long current;
+        long next;
+        do {
+            current = latencyNanos.get();
+            next = current == 0 ? Math.max(1, nanos) : Math.max(1, (long) (current + ALPHA * (nanos - current)));
+        } while (!latencyNanos.compareAndSet(current, next));
+    }
+
+    /**
+     * @return the number of failures in a row, including this one
+     */
+    int failed() {
+        return consecutiveFailures.incrementAndGet();
+    }
+
+    void succeeded() {
+        if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+    }
+
+    void eject(final long untilNanos) {
+        ejectedUntilNanos = untilNanos;
+        ejected = true;
+        consecutiveFailures.set(0);
+        // the node is measured again from scratch once it is back
+        latencyNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return address + " (outstanding: " + outstanding + ", latency: " + latencyNanos + " ns)";
+    }
+}
@@ -0,0 +1,14 @@
+package fr.vsct.dt.nsq.selection;
+
+/**
+ * Picks the nsqd node a producer publishes to. Implementations are called concurrently by the publishing threads,
+ * they must be thread-safe and should not allocate.
+ */
+public interface NodeSelector {
+    /**
+     * @param nodes    the nodes of the producer, never empty, must not be modified
+     * @param nowNanos the current {@link System#nanoTime()}, to check whether a node is available
+     * @return one of the available nodes, or null if none is available
+     */
+    Node select(Node[] nodes, long nowNanos);
+}
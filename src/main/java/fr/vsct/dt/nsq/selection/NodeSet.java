@@ -0,0 +1,177 @@
+package fr.vsct.dt.nsq.selection;
+
+import fr.vsct.dt.nsq.ServerAddress;
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The nodes of a producer, in a copy-on-write array so that selecting a node neither locks nor allocates.
+ * Nodes failing several requests in a row, or much slower than the fastest node if enabled, are ejected for a while.
+ * When every node is ejected they are used in turn anyway.
+ */
+public class NodeSet {
+    private static final Node[] EMPTY = new Node[0];
+
+    private final Logger LOGGER = org.slf4j.LoggerFactory.getLogger(NodeSet.class);
+
+    private volatile Node[] nodes = EMPTY;
+    private final AtomicInteger panicCount = new AtomicInteger();
+    private volatile NodeSelector selector = new RoundRobinSelector();
+    private volatile int maxFailures = 3;
+    private volatile long ejectionNanos = TimeUnit.SECONDS.toNanos(10);
+    private volatile double slowNodeFactor = 0;
+
+    public synchronized boolean add(final ServerAddress address) {
+        if (find(address) != null) {
+            return false;
+        }
+        final Node[] next = Arrays.copyOf(nodes, nodes.length + 1);
+        next[nodes.length] = new Node(address);
+        nodes = next;
+        return true;
+    }
+
+    public synchronized boolean remove(final ServerAddress address) {
+        final Node[] current = nodes;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].getAddress().equals(address)) {
+                final Node[] next = new Node[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                nodes = next;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Node find(final ServerAddress address) {
+        for (final Node node : nodes) {
+            if (node.getAddress().equals(address)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if at least one node is not ejected
+     */
+    public boolean hasAvailable() {
+        final long now = System.nanoTime();
+        for (final Node node : nodes) {
+            if (node.isAvailable(now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return nodes.length;
+    }
+
+    /**
+     * @return the node to send the next request to, or null if there is no node
+     */
+    public Node select() {
+        final Node[] current = nodes;
+        if (current.length == 0) {
+            return null;
+        }
+        final Node node = selector.select(current, System.nanoTime());
+        if (node != null) {
+            return node;
+        }
+        // trying an ejected node is better than failing right away
+        return current[Math.floorMod(panicCount.getAndIncrement(), current.length)];
+    }
+
+    public void requestStarted(final Node node) {
+        node.started();
+    }
+
+    /**
+     * @param success false if the node failed to answer, an error caused by the request itself is a success here
+     */
+    public void requestCompleted(final Node node, final long latencyNanos, final boolean success) {
+        node.completed();
+        if (success) {
+            node.succeeded();
+            node.recordLatency(latencyNanos);
+            if (slowNodeFactor > 0 && isSlow(node)) {
+                eject(node, "its latency is " + TimeUnit.NANOSECONDS.toMillis(node.getLatencyNanos()) + " ms");
+            }
+        } else {
+            failed(node);
+        }
+    }
+
+    /**
+     * No connection could be made to the node.
+     */
+    public void connectionFailed(final Node node) {
+        failed(node);
+    }
+
+    private void failed(final Node node) {
+        if (node.failed() >= maxFailures) {
+            eject(node, maxFailures + " requests failed in a row");
+        }
+    }
+
+    private boolean isSlow(final Node node) {
+        final long now = System.nanoTime();
+        long fastest = Long.MAX_VALUE;
+        for (final Node other : nodes) {
+            if (other != node && other.getLatencyNanos() > 0 && other.isAvailable(now)) {
+                fastest = Math.min(fastest, other.getLatencyNanos());
+            }
+        }
+        return fastest != Long.MAX_VALUE && node.getLatencyNanos() > slowNodeFactor * fastest;
+    }
+
+    private void eject(final Node node, final String reason) {
+        final long now = System.nanoTime();
+        if (node.isAvailable(now)) {
+            LOGGER.warn("Ejecting nsqd {} for {} ms, {}", node.getAddress(), TimeUnit.NANOSECONDS.toMillis(ejectionNanos),
+                    reason);
+            node.eject(now + ejectionNanos);
+        }
+    }
+
+    public NodeSelector getSelector() {
+        return selector;
+    }
+
+    public void setSelector(final NodeSelector selector) {
+        Preconditions.checkNotNull(selector);
+        this.selector = selector;
+    }
+
+    /**
+     * Number of failures in a row after which a node is ejected.
+     */
+    public void setMaxFailures(final int maxFailures) {
+        Preconditions.checkArgument(maxFailures > 0, "maxFailures must be positive");
+        this.maxFailures = maxFailures;
+    }
+
+    public void setEjectionMillis(final long ejectionMillis) {
+        Preconditions.checkArgument(ejectionMillis >= 0, "ejectionMillis must not be negative");
+        this.ejectionNanos = TimeUnit.MILLISECONDS.toNanos(ejectionMillis);
+    }
+
+    /**
+     * A node is ejected when its average latency is more than this factor times the one of the fastest available
+     * node. 0, the default, disables it.
+     */
+    public void setSlowNodeFactor(final double slowNodeFactor) {
+        Preconditions.checkArgument(slowNodeFactor == 0 || slowNodeFactor > 1, "slowNodeFactor must be 0 or above 1");
+        this.slowNodeFactor = slowNodeFactor;
+    }
+}
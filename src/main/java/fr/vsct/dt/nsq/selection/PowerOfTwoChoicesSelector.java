@@ -0,0 +1,45 @@
+package fr.vsct.dt.nsq.selection;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks two available nodes at random and uses the one with the lowest expected latency, its average latency
+ * multiplied by its pending requests. Slow or busy nodes get less traffic without the whole load moving to the
+ * fastest node at once.
+ */
+public class PowerOfTwoChoicesSelector implements NodeSelector {
+    @Override
+    public Node select(final Node[] nodes, final long nowNanos) {
+        if (nodes.length == 1) {
+            return nodes[0].isAvailable(nowNanos) ? nodes[0] : null;
+        }
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int first = random.nextInt(nodes.length);
+        final int second = (first + 1 + random.nextInt(nodes.length - 1)) % nodes.length;
+        final Node a = nodes[first];
+        final Node b = nodes[second];
+        final boolean aAvailable = a.isAvailable(nowNanos);
+        final boolean bAvailable = b.isAvailable(nowNanos);
+        if (aAvailable && bAvailable) {
+            return cost(a) <= cost(b) ? a : b;
+        }
+        if (aAvailable) {
+            return a;
+        }
+        if (bAvailable) {
+            return b;
+        }
+        for (int i = 1; i < nodes.length; i++) {
+            final Node node = nodes[(second + i) % nodes.length];
+            if (node.isAvailable(nowNanos)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private static double cost(final Node node) {
+        // nodes without measure yet look fast, so that they get probed
+        return (double) node.getLatencyNanos() * (node.getOutstanding() + 1);
+    }
+}
@@ -0,0 +1,22 @@
+package fr.vsct.dt.nsq.selection;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uses the available nodes one after the other.
+ */
+public class RoundRobinSelector implements NodeSelector {
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Override
+    public Node select(final Node[] nodes, final long nowNanos) {
+        final int start = next.getAndIncrement();
+        for (int i = 0; i < nodes.length; i++) {
+            final Node node = nodes[Math.floorMod(start + i, nodes.length)];
+            if (node.isAvailable(nowNanos)) {
+                return node;
+            }
+        }
+        return null;
+    }
+}
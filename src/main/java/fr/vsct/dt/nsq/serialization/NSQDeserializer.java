@@ -0,0 +1,19 @@
+package fr.vsct.dt.nsq.serialization;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+
+/**
+ * Reads messages straight from the inbound network buffer, see
+ * {@link fr.vsct.dt.nsq.callbacks.DeserializingMessageCallback}.
+ */
+@FunctionalInterface
+public interface NSQDeserializer<T> {
+
+    /**
+     * Reads the message from the readable bytes of the buffer. The buffer is only valid until the message is
+     * finished or requeued, the result must not keep a reference to it.
+     */
+    T deserialize(ByteBuf in) throws IOException;
+}
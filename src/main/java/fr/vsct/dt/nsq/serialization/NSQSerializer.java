@@ -0,0 +1,18 @@
+package fr.vsct.dt.nsq.serialization;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+
+/**
+ * Writes messages straight into the outbound network buffer, see
+ * {@link fr.vsct.dt.nsq.NSQProducer#produce(String, Object, NSQSerializer)}.
+ */
+@FunctionalInterface
+public interface NSQSerializer<T> {
+
+    /**
+     * Writes the message at the writer index of the buffer, which grows as needed.
+     */
+    void serialize(T message, ByteBuf out) throws IOException;
+}
@@ -0,0 +1,22 @@
+package fr.vsct.dt.nsq.serialization;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Messages as UTF-8 text.
+ */
+public class StringCodec implements NSQSerializer<CharSequence>, NSQDeserializer<String> {
+
+    @Override
+    public void serialize(final CharSequence message, final ByteBuf out) {
+        ByteBufUtil.writeUtf8(out, message);
+    }
+
+    @Override
+    public String deserialize(final ByteBuf in) {
+        return in.toString(StandardCharsets.UTF_8);
+    }
+}
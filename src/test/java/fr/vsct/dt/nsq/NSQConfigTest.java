@@ -0,0 +1,93 @@
+package fr.vsct.dt.nsq;
+
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+public class NSQConfigTest {
+
+    /**
+     * Every field gets a value other than its default, so that a field added to the config but not to
+     * {@link NSQConfig#copy()} fails the test.
+     */
+    @Test
+    public void testCopyCopiesEveryField() throws Exception {
+        final NSQConfig config = new NSQConfig();
+        int distinct = 7;
+        for (final Field field : fields()) {
+            final Object value = otherValue(field, field.get(config), distinct++);
+            assertNotEquals(field.getName(), field.get(config), value);
+            field.set(config, value);
+        }
+        final NSQConfig copy = config.copy();
+        for (final Field field : fields()) {
+            final Object value = field.get(config);
+            if (field.getType().isPrimitive()) {
+                assertEquals(field.getName() + " is not copied", value, field.get(copy));
+            } else {
+                assertSame(field.getName() + " is not copied", value, field.get(copy));
+            }
+        }
+    }
+
+    private static Field[] fields() {
+        final Field[] fields = NSQConfig.class.getDeclaredFields();
+        int count = 0;
+        for (final Field field : fields) {
+            // the logger is final, it is the only state shared by every config
+            if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isFinal(field.getModifiers())) {
+                field.setAccessible(true);
+                fields[count++] = field;
+            }
+        }
+        final Field[] copied = new Field[count];
+        System.arraycopy(fields, 0, copied, 0, count);
+        return copied;
+    }
+
+    private static Object otherValue(final Field field, final Object current, final int distinct) throws Exception {
+        final Class<?> type = field.getType();
+        if (type == boolean.class || type == Boolean.class) {
+            return !Boolean.TRUE.equals(current);
+        }
+        if (type == int.class || type == Integer.class) {
+            return distinct;
+        }
+        if (type == long.class || type == Long.class) {
+            return (long) distinct;
+        }
+        if (type == String.class) {
+            return field.getName() + distinct;
+        }
+        if (type.isEnum()) {
+            for (final Object constant : type.getEnumConstants()) {
+                if (constant != current) {
+                    return constant;
+                }
+            }
+        }
+        if (type == SslContext.class) {
+            return SslContextBuilder.forClient().build();
+        }
+        if (type.isInterface()) {
+            return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+                if (method.getName().equals("equals")) {
+                    return proxy == args[0];
+                }
+                if (method.getName().equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                return null;
+            });
+        }
+        throw new AssertionError("No test value for the field " + field.getName() + " of type " + type.getName());
+    }
+}
@@ -0,0 +1,694 @@
+package fr.vsct.dt.nsq;
+
+import fr.vsct.dt.nsq.callbacks.BatchingMessageCallback;
+import fr.vsct.dt.nsq.callbacks.DeserializingMessageCallback;
+import fr.vsct.dt.nsq.callbacks.NSQMessageCallback;
+import fr.vsct.dt.nsq.embedded.EmbeddedNsqLookupd;
+import fr.vsct.dt.nsq.embedded.EmbeddedNsqd;
+import fr.vsct.dt.nsq.exceptions.BadTopicException;
+import fr.vsct.dt.nsq.executor.StripedExecutor;
+import fr.vsct.dt.nsq.journal.SpillJournal;
+import fr.vsct.dt.nsq.lookup.DefaultNSQLookup;
+import fr.vsct.dt.nsq.lookup.NSQLookup;
+import fr.vsct.dt.nsq.metrics.DefaultMetricsRegistry;
+import fr.vsct.dt.nsq.serialization.NSQDeserializer;
+import fr.vsct.dt.nsq.serialization.StringCodec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Produces and consumes against an embedded nsqd and nsqlookupd, no NSQ installation is needed.
+ */
+public class NSQLoopbackTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private EmbeddedNsqd nsqd;
+    private EmbeddedNsqLookupd lookupd;
+    private NSQProducer producer;
+    private NSQConsumer consumer;
+
+    @Before
+    public void setUp() {
+        nsqd = new EmbeddedNsqd().setMessageTimeoutMillis(500).start();
+        lookupd = new EmbeddedNsqLookupd().start().register(nsqd);
+        producer = new NSQProducer().addAddress("127.0.0.1", nsqd.getPort()).start();
+    }
+
+    @After
+    public void tearDown() {
+        if (consumer != null) {
+            consumer.shutdown();
+        }
+        producer.shutdown();
+        lookupd.close();
+        nsqd.close();
+    }
+
+    private NSQConsumer consume(final String topic, final NSQMessageCallback callback) {
+        return consume(topic, callback, new NSQConfig());
+    }
+
+    private NSQConsumer consume(final String topic, final NSQMessageCallback callback, final NSQConfig config) {
+        final NSQLookup lookup = new DefaultNSQLookup();
+        lookup.addLookupAddress("127.0.0.1", lookupd.getPort());
+        consumer = new NSQConsumer(lookup, topic, "loopback", callback, config);
+        consumer.setLookupPeriod(200);
+        return consumer.start();
+    }
+
+    @Test
+    public void testProduceAndConsume() throws Exception {
+        final int count = 1000;
+        final CountDownLatch received = new CountDownLatch(count);
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < count / 2; i++) {
+            producer.produce("loopback", ("sync" + i).getBytes(StandardCharsets.UTF_8));
+            futures.add(producer.produceAsync("loopback", ("async" + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+
+        consume("loopback", message -> {
+            message.finished();
+            received.countDown();
+        });
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        assertEquals(count, nsqd.getPublishedCount("loopback"));
+        waitFor(() -> nsqd.getFinishedCount("loopback", "loopback") == count);
+    }
+
+    @Test
+    public void testMultiPublishAndBatching() throws Exception {
+        final List<byte[]> messages = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            messages.add(("multi" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        producer.produceMulti("loopback", messages);
+
+        final NSQProducer batching = new NSQProducer().addAddress("127.0.0.1", nsqd.getPort())
+                .setBatchConfig(new BatchConfig().setMaxMessages(10)).start();
+        try {
+            final List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 95; i++) {
+                futures.add(batching.produceAsync("loopback", ("batch" + i).getBytes(StandardCharsets.UTF_8)));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        } finally {
+            batching.shutdown();
+        }
+        assertEquals(195, nsqd.getPublishedCount("loopback"));
+    }
+
+    @Test
+    public void testResponsesMatchCommandsWhileConnecting() throws Exception {
+        // the first publishes wait for the slow IDENTIFY response and go out from the event loop, the next ones
+        // keep coming from the publishing threads meanwhile
+        nsqd.setLatencyMillis(20);
+        final NSQProducer connecting = new NSQProducer().addAddress("127.0.0.1", nsqd.getPort()).start();
+        final int threads = 8;
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            final int count = 300;
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<CompletableFuture<List<CompletableFuture<Void>>>> publishers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                publishers.add(CompletableFuture.supplyAsync(() -> {
+                    final List<CompletableFuture<Void>> futures = new ArrayList<>();
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    // every other publish is rejected by nsqd
+                    for (int i = 0; i < count; i++) {
+                        futures.add(connecting.produceAsync(i % 2 == 0 ? "ordered" : "bad!topic",
+                                ("ordered" + i).getBytes(StandardCharsets.UTF_8)));
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                    }
+                    return futures;
+                }, pool));
+            }
+            start.countDown();
+            for (final CompletableFuture<List<CompletableFuture<Void>>> publisher : publishers) {
+                final List<CompletableFuture<Void>> futures = publisher.get(10, TimeUnit.SECONDS);
+                for (int i = 0; i < count; i++) {
+                    try {
+                        futures.get(i).get(10, TimeUnit.SECONDS);
+                        assertEquals(0, i % 2);
+                    } catch (ExecutionException e) {
+                        assertEquals(1, i % 2);
+                        assertTrue(e.getCause() instanceof BadTopicException);
+                    }
+                }
+            }
+            assertEquals(threads * count / 2, nsqd.getPublishedCount("ordered"));
+        } finally {
+            pool.shutdown();
+            connecting.shutdown();
+        }
+    }
+
+    @Test
+    public void testSnappy() throws Exception {
+        final NSQConfig config = new NSQConfig();
+        config.setCompression(NSQConfig.Compression.SNAPPY);
+        produceAndConsumeCompressed("snappy", config);
+    }
+
+    @Test
+    public void testDeflate() throws Exception {
+        final NSQConfig config = new NSQConfig();
+        config.setCompression(NSQConfig.Compression.DEFLATE);
+        config.setDeflateLevel(6);
+        produceAndConsumeCompressed("deflate", config);
+    }
+
+    /**
+     * Pipelines publishes right after the compression upgrade, every response must match its command.
+     */
+    private void produceAndConsumeCompressed(final String topic, final NSQConfig config) throws Exception {
+        final NSQProducer compressed = new NSQProducer().addAddress("127.0.0.1", nsqd.getPort()).setConfig(config)
+                .start();
+        try {
+            final int count = 200;
+            final List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                futures.add(compressed.produceAsync(i % 2 == 0 ? topic : "bad!topic",
+                        (topic + i).getBytes(StandardCharsets.UTF_8)));
+            }
+            for (int i = 0; i < count; i++) {
+                try {
+                    futures.get(i).get(10, TimeUnit.SECONDS);
+                    assertEquals(0, i % 2);
+                } catch (ExecutionException e) {
+                    assertEquals(1, i % 2);
+                    assertTrue(e.getCause() instanceof BadTopicException);
+                }
+            }
+            assertEquals(count / 2, nsqd.getPublishedCount(topic));
+        } finally {
+            compressed.shutdown();
+        }
+
+        final CountDownLatch received = new CountDownLatch(100);
+        consume(topic, message -> {
+            message.finished();
+            received.countDown();
+        }, config);
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSharedProducerConnections() throws Exception {
+        final NSQProducer shared = new NSQProducer().addAddress("127.0.0.1", nsqd.getPort())
+                .setConnectionsPerNode(2).setHealthCheckIntervalMillis(50).start();
+        try {
+            final List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                futures.add(shared.produceAsync("shared", ("shared" + i).getBytes(StandardCharsets.UTF_8)));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+            // connections are made on first use, the default producer has none
+            assertEquals(2, nsqd.getClientCount());
+
+            // lost connections are re-established by the health check
+            nsqd.disconnectAll();
+            waitFor(() -> nsqd.getClientCount() == 2);
+            shared.produce("shared", "reconnected".getBytes(StandardCharsets.UTF_8));
+            assertEquals(1001, nsqd.getPublishedCount("shared"));
+        } finally {
+            shared.shutdown();
+        }
+    }
+
+    @Test
+    public void testDeferredPublish() throws Exception {
+        final NSQProducer batching = new NSQProducer().addAddress("127.0.0.1", nsqd.getPort())
+                .setBatchConfig(new BatchConfig()).start();
+        try {
+            producer.produceDeferred("deferred", "sync".getBytes(StandardCharsets.UTF_8), 300);
+            batching.produceDeferredAsync("deferred", "async".getBytes(StandardCharsets.UTF_8), 300)
+                    .get(10, TimeUnit.SECONDS);
+        } finally {
+            batching.shutdown();
+        }
+        final long published = System.currentTimeMillis();
+        final CountDownLatch received = new CountDownLatch(2);
+        consume("deferred", message -> {
+            message.finished();
+            received.countDown();
+        });
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        assertEquals(2, nsqd.getPublishedCount("deferred"));
+        assertTrue(System.currentTimeMillis() - published >= 200);
+    }
+
+    @Test
+    public void testSerializers() throws Exception {
+        final StringCodec codec = new StringCodec();
+        producer.produce("typed", "\u00e9 sync", codec);
+        producer.produceAsync("typed", new StringBuilder("\u00e9 async"), codec).get(10, TimeUnit.SECONDS);
+        producer.produce("typed", new byte[] {(byte) 0xFF});
+        final NSQDeserializer<String> strict = in -> {
+            final String text = codec.deserialize(in);
+            if (!text.startsWith("\u00e9")) {
+                throw new IOException("Not a text message");
+            }
+            return text;
+        };
+        final List<String> received = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch failed = new CountDownLatch(1);
+        consume("typed", new DeserializingMessageCallback<>(strict, (message, body) -> {
+            received.add(body);
+            message.finished();
+        }, message -> {
+            failed.countDown();
+            message.finished();
+        }));
+        assertTrue(failed.await(10, TimeUnit.SECONDS));
+        waitFor(() -> received.size() == 2);
+        assertEquals(new HashSet<>(Arrays.asList("\u00e9 sync", "\u00e9 async")), new HashSet<>(received));
+    }
+
+    @Test
+    public void testBufferedProduce() throws Exception {
+        final DefaultMetricsRegistry metrics = new DefaultMetricsRegistry();
+        final NSQConfig config = new NSQConfig();
+        config.setMetricsRegistry(metrics);
+        final NSQProducer buffered = new NSQProducer().addAddress("127.0.0.1", nsqd.getPort()).setConfig(config)
+                .setBufferConfig(new BufferConfig()).start();
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            buffered.produce("buffered", ("sync" + i).getBytes(StandardCharsets.UTF_8));
+            futures.add(buffered.produceAsync("buffered", ("async" + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        assertTrue(metrics.getGauges().containsKey("nsq.producer.buffer.bytes"));
+        // shutting down publishes the rest
+        buffered.shutdown();
+        assertEquals(1000, nsqd.getPublishedCount("buffered"));
+        assertTrue(metrics.histogram("nsq.producer.mpub.rtt").getCount() > 0);
+        assertFalse(metrics.getGauges().containsKey("nsq.producer.buffer.bytes"));
+    }
+
+    @Test
+    public void testSpillJournal() throws Exception {
+        final int deadPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            deadPort = socket.getLocalPort();
+        }
+        final SpillJournal journal = new SpillJournal(folder.newFolder().toPath(), 64 * 1024, 4);
+        final NSQProducer spilling = new NSQProducer().addAddress("127.0.0.1", deadPort)
+                .setNodeEjection(1, 60000).setSpillJournal(journal).start();
+        try {
+            spilling.produce("spilled", "first".getBytes(StandardCharsets.UTF_8));
+            spilling.produceMulti("spilled", Arrays.asList("second".getBytes(StandardCharsets.UTF_8),
+                    "third".getBytes(StandardCharsets.UTF_8)));
+            assertEquals(3, journal.getPendingCount());
+            assertEquals(0, nsqd.getPublishedCount("spilled"));
+
+            spilling.addAddress("127.0.0.1", nsqd.getPort()).removeAddress("127.0.0.1", deadPort);
+            waitFor(() -> nsqd.getPublishedCount("spilled") == 3);
+            waitFor(() -> journal.getPendingCount() == 0);
+        } finally {
+            spilling.shutdown();
+            journal.close();
+        }
+    }
+
+    @Test
+    public void testShutdownWhileReplaying() throws Exception {
+        final int deadPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            deadPort = socket.getLocalPort();
+        }
+        final List<byte[]> messages = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            messages.add(("message " + i).getBytes(StandardCharsets.UTF_8));
+        }
+        final SpillJournal journal = new SpillJournal(folder.newFolder().toPath(), 64 * 1024, 4);
+        try {
+            final NSQProducer spilling = new NSQProducer().addAddress("127.0.0.1", deadPort)
+                    .setNodeEjection(1, 60000).setSpillJournal(journal).start();
+            spilling.produceMulti("replayed", messages);
+            assertEquals(500, journal.getPendingCount());
+
+            // each batch waits for its response, the producer is shut down in the middle of the replay
+            nsqd.setLatencyMillis(200);
+            spilling.addAddress("127.0.0.1", nsqd.getPort()).removeAddress("127.0.0.1", deadPort);
+            waitFor(() -> nsqd.getPublishedCount("replayed") > 0);
+            spilling.shutdown();
+            assertTrue(journal.getPendingCount() > 0);
+
+            // the batch in flight was not committed, another producer publishes every remaining message
+            nsqd.setLatencyMillis(0);
+            final NSQProducer replaying = new NSQProducer().addAddress("127.0.0.1", nsqd.getPort())
+                    .setSpillJournal(journal).start();
+            try {
+                waitFor(() -> journal.getPendingCount() == 0);
+                assertTrue(nsqd.getPublishedCount("replayed") >= 500);
+            } finally {
+                replaying.shutdown();
+            }
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void testRequeueAndTimeout() throws Exception {
+        producer.produce("loopback", "requeued".getBytes(StandardCharsets.UTF_8));
+        producer.produce("loopback", "timed out".getBytes(StandardCharsets.UTF_8));
+        final CountDownLatch redelivered = new CountDownLatch(2);
+        consume("loopback", message -> {
+            if (message.getAttempts() > 1) {
+                message.finished();
+                redelivered.countDown();
+            } else if ("requeued".equals(new String(message.getMessage(), StandardCharsets.UTF_8))) {
+                message.requeue(0);
+            }
+            // the other message is neither finished nor requeued, nsqd requeues it after its timeout
+        });
+        assertTrue(redelivered.await(10, TimeUnit.SECONDS));
+        assertEquals(2, nsqd.getRequeuedCount("loopback", "loopback"));
+    }
+
+    @Test
+    public void testTouch() throws Exception {
+        producer.produce("loopback", "slow".getBytes(StandardCharsets.UTF_8));
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicInteger attempts = new AtomicInteger();
+        consume("loopback", message -> {
+            attempts.set(message.getAttempts());
+            try {
+                // twice the message timeout, touching it in between
+                for (int i = 0; i < 4; i++) {
+                    Thread.sleep(250);
+                    message.touch();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            message.finished();
+            finished.countDown();
+        });
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        waitFor(() -> nsqd.getFinishedCount("loopback", "loopback") == 1);
+        assertEquals(1, attempts.get());
+        assertEquals(0, nsqd.getRequeuedCount("loopback", "loopback"));
+    }
+
+    @Test
+    public void testReconnectAfterDisconnect() throws Exception {
+        final AtomicInteger received = new AtomicInteger();
+        consume("loopback", message -> {
+            message.finished();
+            received.incrementAndGet();
+        });
+        producer.produce("loopback", "before".getBytes(StandardCharsets.UTF_8));
+        waitFor(() -> received.get() == 1);
+
+        nsqd.disconnectAll();
+        producer.produce("loopback", "after".getBytes(StandardCharsets.UTF_8));
+        waitFor(() -> received.get() == 2);
+    }
+
+    @Test
+    public void testPublishRateLimit() throws Exception {
+        nsqd.setMaxPublishRate(100);
+        final long start = System.nanoTime();
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(producer.produceAsync("loopback", ("limited" + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(400));
+    }
+
+    @Test
+    public void testBatchCallback() throws Exception {
+        for (int i = 0; i < 25; i++) {
+            producer.produce("loopback", ("batched" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        final List<Integer> sizes = Collections.synchronizedList(new ArrayList<>());
+        final BatchingMessageCallback callback = new BatchingMessageCallback(messages -> {
+            sizes.add(messages.size());
+            NSQMessage.finishAll(messages);
+        }, 10, 200);
+        try {
+            consume("loopback", callback);
+            waitFor(() -> nsqd.getFinishedCount("loopback", "loopback") == 25);
+        } finally {
+            callback.close();
+        }
+        int total = 0;
+        for (final int size : sizes) {
+            assertTrue(size <= 10);
+            total += size;
+        }
+        assertEquals(25, total);
+    }
+
+    @Test
+    public void testPublisherFollowsDemand() throws Exception {
+        for (int i = 0; i < 30; i++) {
+            producer.produce("loopback", ("reactive" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        final NSQLookup lookup = new DefaultNSQLookup();
+        lookup.addLookupAddress("127.0.0.1", lookupd.getPort());
+        final NSQConsumerPublisher publisher = new NSQConsumerPublisher(lookup, "loopback", "loopback");
+        final List<NSQMessage> received = Collections.synchronizedList(new ArrayList<>());
+        final Subscription[] subscription = new Subscription[1];
+        publisher.subscribe(new Subscriber<NSQMessage>() {
+            @Override
+            public void onSubscribe(final Subscription s) {
+                subscription[0] = s;
+                s.request(10);
+            }
+
+            @Override
+            public void onNext(final NSQMessage message) {
+                received.add(message);
+            }
+
+            @Override
+            public void onError(final Throwable t) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        waitFor(() -> received.size() == 10);
+        Thread.sleep(200);
+        // no more than requested, even once the first messages are finished
+        NSQMessage.finishAll(new ArrayList<>(received));
+        Thread.sleep(200);
+        assertEquals(10, received.size());
+
+        subscription[0].request(20);
+        waitFor(() -> received.size() == 30);
+        NSQMessage.finishAll(received.subList(10, 30));
+        waitFor(() -> nsqd.getFinishedCount("loopback", "loopback") == 30);
+        subscription[0].cancel();
+    }
+
+    @Test
+    public void testSubscriberPublishesInBatches() throws Exception {
+        final NSQProducerSubscriber subscriber = new NSQProducerSubscriber(producer, "loopback").setBatchSize(50);
+        final AtomicLong requested = new AtomicLong();
+        final AtomicInteger sent = new AtomicInteger();
+        // synchronous upstream emitting 1000 messages as they are requested
+        subscriber.onSubscribe(new Subscription() {
+            private boolean emitting = false;
+
+            @Override
+            public synchronized void request(final long n) {
+                requested.addAndGet(n);
+                if (emitting) {
+                    return;
+                }
+                emitting = true;
+                while (requested.get() > 0 && sent.get() < 1000) {
+                    requested.decrementAndGet();
+                    subscriber.onNext(("streamed" + sent.incrementAndGet()).getBytes(StandardCharsets.UTF_8));
+                }
+                if (sent.get() == 1000) {
+                    subscriber.onComplete();
+                }
+                emitting = false;
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        subscriber.getCompletion().get(10, TimeUnit.SECONDS);
+        assertEquals(1000, nsqd.getPublishedCount("loopback"));
+    }
+
+    @Test
+    public void testBoundedExecutorBacksOff() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            producer.produce("loopback", ("bounded" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        final DefaultMetricsRegistry metrics = new DefaultMetricsRegistry();
+        final NSQConfig config = new NSQConfig();
+        config.setMetricsRegistry(metrics);
+        final NSQLookup lookup = new DefaultNSQLookup();
+        lookup.addLookupAddress("127.0.0.1", lookupd.getPort());
+        consumer = new NSQConsumer(lookup, "loopback", "loopback", message -> {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            message.finished();
+        }, config);
+        consumer.setExecutor(new StripedExecutor(1, 1)).setBackoffMillis(10).start();
+        waitFor(() -> nsqd.getFinishedCount("loopback", "loopback") == 20);
+        assertTrue(metrics.counter("nsq.consumer.loopback.loopback.backoffs").getCount() > 0);
+    }
+
+    @Test
+    public void testDelayedFlush() throws Exception {
+        final NSQConfig config = new NSQConfig();
+        config.setFlushDelayMicros(500);
+        final NSQProducer delayed = new NSQProducer().addAddress("127.0.0.1", nsqd.getPort()).setConfig(config).start();
+        try {
+            final List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                futures.add(delayed.produceAsync("loopback", ("delayed" + i).getBytes(StandardCharsets.UTF_8)));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        } finally {
+            delayed.shutdown();
+        }
+        final CountDownLatch received = new CountDownLatch(100);
+        consume("loopback", message -> {
+            message.finished();
+            received.countDown();
+        }, config);
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        waitFor(() -> nsqd.getFinishedCount("loopback", "loopback") == 100);
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        final DefaultMetricsRegistry metrics = new DefaultMetricsRegistry();
+        final NSQConfig config = new NSQConfig();
+        config.setMetricsRegistry(metrics);
+        final NSQProducer measured = new NSQProducer().addAddress("127.0.0.1", nsqd.getPort()).setConfig(config).start();
+        try {
+            for (int i = 0; i < 10; i++) {
+                measured.produce("loopback", ("measured" + i).getBytes(StandardCharsets.UTF_8));
+            }
+        } finally {
+            measured.shutdown();
+        }
+        assertEquals(10, metrics.counter("nsq.producer.published").getCount());
+        assertEquals(10, metrics.histogram("nsq.producer.pub.rtt").getCount());
+
+        final AtomicInteger received = new AtomicInteger();
+        consume("loopback", message -> {
+            if (received.incrementAndGet() == 1) {
+                message.requeue();
+            } else {
+                message.finished();
+            }
+        }, config);
+        waitFor(() -> received.get() == 11);
+        waitFor(() -> metrics.histogram("nsq.consumer.loopback.loopback.callback").getCount() == 11);
+        long finished = 0;
+        long requeued = 0;
+        for (final String name : metrics.getCounters().keySet()) {
+            if (name.startsWith("nsq.connection.") && name.endsWith(".finished")) {
+                finished += metrics.counter(name).getCount();
+            } else if (name.startsWith("nsq.connection.") && name.endsWith(".requeued")) {
+                requeued += metrics.counter(name).getCount();
+            }
+        }
+        assertEquals(10, finished);
+        assertEquals(1, requeued);
+        assertEquals(Long.valueOf(1), metrics.getGauges().get("nsq.consumer.loopback.loopback.connections"));
+    }
+
+    @Test
+    public void testSharedRuntime() throws Exception {
+        final NSQLookup lookup = new DefaultNSQLookup().setCacheTtlMillis(0);
+        lookup.addLookupAddress("127.0.0.1", lookupd.getPort());
+        final AtomicInteger[] received = new AtomicInteger[4];
+        final NSQConfig config = new NSQConfig();
+        try (NSQConsumerRuntime runtime = new NSQConsumerRuntime().setLookupPeriod(100).setMaxInFlight(10)) {
+            final List<NSQConsumer> consumers = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                final AtomicInteger count = received[i] = new AtomicInteger();
+                // the topics do not exist yet, the poller connects once they are published to
+                consumers.add(runtime.subscribe(lookup, "runtime" + i % 2, "channel" + i, message -> {
+                    message.finished();
+                    count.incrementAndGet();
+                }, config).start());
+            }
+            // the consumers use a copy of the config with the group of the runtime
+            assertNull(config.getEventLoopGroup());
+            assertEquals(3, consumers.get(0).getMaxInFlight());
+            assertEquals(2, consumers.get(3).getMaxInFlight());
+            waitFor(() -> {
+                producer.produceAsync("runtime0", "shared".getBytes(StandardCharsets.UTF_8));
+                producer.produceAsync("runtime1", "shared".getBytes(StandardCharsets.UTF_8));
+                for (final AtomicInteger count : received) {
+                    if (count.get() == 0) {
+                        return false;
+                    }
+                }
+                return true;
+            });
+
+            consumers.get(0).shutdown();
+            assertEquals(4, consumers.get(1).getMaxInFlight());
+        }
+    }
+
+    private static void waitFor(final Condition condition) throws InterruptedException, TimeoutException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.isMet()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new TimeoutException();
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+}
@@ -0,0 +1,171 @@
+package fr.vsct.dt.nsq;
+
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.MoreExecutors;
+import fr.vsct.dt.nsq.callbacks.NSQMessageCallback;
+import fr.vsct.dt.nsq.executor.StripedExecutor;
+import fr.vsct.dt.nsq.lookup.NSQLookup;
+import fr.vsct.dt.nsq.serialization.StringCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NSQMessageTest {
+    private static final byte[] BODY = "body".getBytes(StandardCharsets.UTF_8);
+
+    private final EmbeddedChannel channel = new EmbeddedChannel();
+    private final Connection connection = new Connection(new ServerAddress("localhost", 4150), new NSQConfig(), channel);
+    private NSQConsumer consumer;
+
+    @After
+    public void tearDown() {
+        if (consumer != null) {
+            consumer.shutdown();
+        }
+        channel.close();
+    }
+
+    private NSQMessage message(final ByteBuf buffer) {
+        final NSQMessage message = new NSQMessage();
+        message.setMessageId(MessageId.of(new byte[16]));
+        message.setConnection(connection);
+        message.setMessageBuffer(buffer);
+        return message;
+    }
+
+    @Test
+    public void testFinishReleasesBuffer() {
+        final ByteBuf buffer = Unpooled.copiedBuffer(BODY);
+        final NSQMessage message = message(buffer);
+        message.finished();
+        assertEquals(0, buffer.refCnt());
+        try {
+            message.getMessage();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected, the body is not copied on release
+        }
+    }
+
+    @Test
+    public void testRequeueReleasesBuffer() {
+        final ByteBuf buffer = Unpooled.copiedBuffer(BODY);
+        final NSQMessage message = message(buffer);
+        assertArrayEquals(BODY, message.getMessage());
+        message.requeue();
+        assertEquals(0, buffer.refCnt());
+        assertArrayEquals(BODY, message.getMessage());
+    }
+
+    @Test
+    public void testBodyReadWithoutCopy() throws Exception {
+        final ByteBuf buffer = Unpooled.copiedBuffer(BODY);
+        final NSQMessage message = message(buffer);
+        assertEquals("body", message.getMessage(new StringCodec()));
+        message.release();
+        assertEquals(0, buffer.refCnt());
+        try {
+            message.getMessage();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected, the body was not copied
+        }
+    }
+
+    @Test
+    public void testCallbackReturningReleasesBuffer() {
+        final Set<NSQMessage> kept = Sets.newConcurrentHashSet();
+        start(message -> {
+            message.getMessage();
+            kept.add(message);
+        });
+        final ByteBuf buffer = Unpooled.copiedBuffer(BODY);
+        consumer.processMessage(message(buffer));
+        assertEquals(0, buffer.refCnt());
+        // the body copied by the callback can still be read, and the message finished later
+        final NSQMessage message = kept.iterator().next();
+        assertArrayEquals(BODY, message.getMessage());
+        message.finished();
+    }
+
+    @Test
+    public void testRetainedMessageKeepsBuffer() throws Exception {
+        final Set<NSQMessage> kept = Sets.newConcurrentHashSet();
+        start(message -> {
+            message.retain();
+            kept.add(message);
+        });
+        final ByteBuf buffer = Unpooled.copiedBuffer(BODY);
+        consumer.processMessage(message(buffer));
+        assertEquals(1, buffer.refCnt());
+        // the body is read without copy after the callback returned, until the message is finished
+        final NSQMessage message = kept.iterator().next();
+        assertEquals("body", message.getMessage(new StringCodec()));
+        message.finished();
+        assertEquals(0, buffer.refCnt());
+    }
+
+    @Test
+    public void testCallbackThrowingReleasesBuffer() {
+        start(message -> {
+            throw new IllegalStateException("callback failure");
+        });
+        final ByteBuf buffer = Unpooled.copiedBuffer(BODY);
+        try {
+            consumer.processMessage(message(buffer));
+            fail();
+        } catch (IllegalStateException e) {
+            // the direct executor runs the callback on the calling thread
+        }
+        assertEquals(0, buffer.refCnt());
+    }
+
+    @Test
+    public void testKeyExtractorThrowing() throws Exception {
+        final CountDownLatch processed = new CountDownLatch(1);
+        final StripedExecutor executor = new StripedExecutor(2, 10);
+        consumer = new NSQConsumer(emptyLookup(), "topic", "channel", message -> processed.countDown())
+                .setExecutor(executor)
+                .setKeyExtractor(message -> {
+                    throw new IllegalArgumentException("no key");
+                })
+                .start();
+        final ByteBuf buffer = Unpooled.copiedBuffer(BODY);
+        consumer.processMessage(message(buffer));
+        // the message is processed without key instead of leaking its buffer
+        assertTrue(processed.await(5, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, buffer.refCnt());
+    }
+
+    private void start(final NSQMessageCallback callback) {
+        consumer = new NSQConsumer(emptyLookup(), "topic", "channel", callback)
+                .setExecutor(MoreExecutors.newDirectExecutorService()).start();
+    }
+
+    private static NSQLookup emptyLookup() {
+        return new NSQLookup() {
+            @Override
+            public Set<ServerAddress> lookup(final String topic) {
+                return Sets.newHashSet();
+            }
+
+            @Override
+            public void addLookupAddress(final String addr, final int port) {
+            }
+        };
+    }
+}
@@ -0,0 +1,68 @@
+package fr.vsct.dt.nsq;
+
+import org.junit.Test;
+import org.reactivestreams.Subscription;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NSQProducerSubscriberTest {
+    private final LinkedBlockingQueue<CompletableFuture<Void>> sent = new LinkedBlockingQueue<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Batches stay pending until the test completes them.
+     */
+    private final NSQProducer producer = new NSQProducer() {
+        @Override
+        CompletableFuture<Void> publishMulti(final String topic, final List<byte[]> messages) {
+            final CompletableFuture<Void> future = new CompletableFuture<>();
+            sent.add(future);
+            return future;
+        }
+
+        @Override
+        protected ExecutorService getExecutor() {
+            return executor;
+        }
+    };
+
+    @Test
+    public void testRejectedContinuationFailsCompletion() throws Exception {
+        final NSQProducerSubscriber subscriber = new NSQProducerSubscriber(producer, "topic").setBatchSize(1);
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        subscriber.onSubscribe(new Subscription() {
+            @Override
+            public void request(final long n) {
+            }
+
+            @Override
+            public void cancel() {
+                cancelled.set(true);
+            }
+        });
+        subscriber.onNext(new byte[1]);
+        subscriber.onComplete();
+
+        // the producer is shut down while the batch is in flight
+        executor.shutdown();
+        sent.take().complete(null);
+        try {
+            subscriber.getCompletion().get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertTrue(cancelled.get());
+    }
+}
@@ -289,6 +289,69 @@ public class NSQProducerTest {
         consumer.shutdown();
     }
 
+    @Test
+    public void testProduceAsync() throws NSQException, TimeoutException, InterruptedException, ExecutionException {
+        AtomicInteger counter = new AtomicInteger(0);
+        NSQLookup lookup = new DefaultNSQLookup();
+        lookup.addLookupAddress("localhost", 4161);
+
+        NSQConsumer consumer = new NSQConsumer(lookup, "test3", "testconsumer", (message) -> {
+            LOGGER.info("Processing message: " + new String(message.getMessage()));
+            counter.incrementAndGet();
+            message.finished();
+        });
+        consumer.start();
+
+        NSQProducer producer = new NSQProducer();
+        producer.addAddress("localhost", 4150);
+        producer.start();
+        List<CompletableFuture<Void>> futures = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            String msg = randomString();
+            futures.add(producer.produceAsync("test3", msg.getBytes()));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).get(10, TimeUnit.SECONDS);
+        producer.shutdown();
+
+        while (counter.get() < 1000) {
+            Thread.sleep(500);
+        }
+        assertTrue(counter.get() >= 1000);
+        consumer.shutdown();
+    }
+
+    @Test
+    public void testBatchProducer() throws NSQException, TimeoutException, InterruptedException, ExecutionException {
+        AtomicInteger counter = new AtomicInteger(0);
+        NSQLookup lookup = new DefaultNSQLookup();
+        lookup.addLookupAddress("localhost", 4161);
+
+        NSQConsumer consumer = new NSQConsumer(lookup, "test3", "testconsumer", (message) -> {
+            LOGGER.info("Processing message: " + new String(message.getMessage()));
+            counter.incrementAndGet();
+            message.finished();
+        });
+        consumer.start();
+
+        NSQProducer producer = new NSQProducer();
+        producer.setBatchConfig(new BatchConfig().setMaxMessages(50).setLingerMillis(20));
+        producer.addAddress("localhost", 4150);
+        producer.start();
+        List<CompletableFuture<Void>> futures = Lists.newArrayList();
+        for (int i = 0; i < 1010; i++) {
+            String msg = randomString();
+            futures.add(producer.produceAsync("test3", msg.getBytes()));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).get(10, TimeUnit.SECONDS);
+        producer.shutdown();
+
+        while (counter.get() < 1010) {
+            Thread.sleep(500);
+        }
+        assertTrue(counter.get() >= 1010);
+        consumer.shutdown();
+    }
+
     @Test
     public void testBackoff() throws InterruptedException, NSQException, TimeoutException {
         AtomicInteger counter = new AtomicInteger(0);
@@ -0,0 +1,165 @@
+package fr.vsct.dt.nsq;
+
+import fr.vsct.dt.nsq.exceptions.BufferFullException;
+import fr.vsct.dt.nsq.metrics.DefaultMetricsRegistry;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PublishBufferTest {
+    private final DefaultMetricsRegistry metrics = new DefaultMetricsRegistry();
+    private final LinkedBlockingQueue<Sent> sent = new LinkedBlockingQueue<>();
+
+    /**
+     * Batches stay pending until the test completes them.
+     */
+    private final NSQProducer producer = new NSQProducer() {
+        @Override
+        CompletableFuture<Void> publishMulti(final String topic, final List<byte[]> messages) {
+            final Sent batch = new Sent(topic, messages);
+            sent.add(batch);
+            return batch.future;
+        }
+    };
+
+    private PublishBuffer buffer(final BufferConfig.OverflowPolicy policy) {
+        return new PublishBuffer(producer, new BufferConfig().setMaxBytes(10).setMaxPendingBatches(1)
+                .setMaxBlockMillis(100).setOverflowPolicy(policy), metrics.counter("dropped"));
+    }
+
+    /**
+     * Fills the buffer while the sender waits for a first pending batch.
+     */
+    private Sent fill(final PublishBuffer buffer) throws Exception {
+        buffer.add("topic", new byte[5]);
+        final Sent first = sent.take();
+        assertEquals(1, first.messages.size());
+        buffer.add("topic", new byte[5]);
+        buffer.add("other", new byte[5]);
+        assertEquals(10, buffer.getBytes());
+        return first;
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        final PublishBuffer buffer = buffer(BufferConfig.OverflowPolicy.DROP_OLDEST);
+        final Sent first = fill(buffer);
+        final CompletableFuture<Void> newest = buffer.add("other", new byte[5]);
+        assertFalse(newest.isDone());
+        assertEquals(1, metrics.counter("dropped").getCount());
+
+        first.future.complete(null);
+        final Sent next = sent.take();
+        // the oldest message of "topic" was dropped
+        assertEquals("other", next.topic);
+        assertEquals(2, next.messages.size());
+    }
+
+    @Test
+    public void testDropOldestKeepsMessagesForOversized() throws Exception {
+        final PublishBuffer buffer = buffer(BufferConfig.OverflowPolicy.DROP_OLDEST);
+        final Sent first = fill(buffer);
+        final CompletableFuture<Void> oversized = buffer.add("other", new byte[11]);
+        assertTrue(oversized.isCompletedExceptionally());
+        assertEquals(1, metrics.counter("dropped").getCount());
+        assertEquals(10, buffer.getBytes());
+
+        // both queued messages are still sent
+        first.future.complete(null);
+        for (int i = 0; i < 2; i++) {
+            final Sent next = sent.poll(5, TimeUnit.SECONDS);
+            assertEquals(1, next.messages.size());
+            next.future.complete(null);
+        }
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        final PublishBuffer buffer = buffer(BufferConfig.OverflowPolicy.DROP_NEWEST);
+        fill(buffer);
+        final CompletableFuture<Void> newest = buffer.add("other", new byte[1]);
+        assertTrue(newest.isCompletedExceptionally());
+        assertEquals(1, metrics.counter("dropped").getCount());
+        assertEquals(10, buffer.getBytes());
+    }
+
+    @Test
+    public void testFail() throws Exception {
+        final PublishBuffer buffer = buffer(BufferConfig.OverflowPolicy.FAIL);
+        fill(buffer);
+        try {
+            buffer.add("other", new byte[1]);
+            fail();
+        } catch (BufferFullException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        final PublishBuffer buffer = buffer(BufferConfig.OverflowPolicy.BLOCK);
+        final Sent first = fill(buffer);
+        final long start = System.nanoTime();
+        try {
+            buffer.add("other", new byte[1]);
+            fail();
+        } catch (BufferFullException e) {
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        }
+
+        // room is made once the pending batch is acknowledged
+        CompletableFuture.runAsync(() -> first.future.complete(null));
+        buffer.add("other", new byte[1]);
+    }
+
+    @Test
+    public void testCloseSendsEverything() throws Exception {
+        final PublishBuffer buffer = buffer(BufferConfig.OverflowPolicy.FAIL);
+        fill(buffer).future.complete(null);
+        final CompletableFuture<Void> closed = buffer.close();
+        for (int i = 0; i < 2; i++) {
+            sent.poll(5, TimeUnit.SECONDS).future.complete(null);
+        }
+        closed.get(5, TimeUnit.SECONDS);
+        assertEquals(0, buffer.getBytes());
+        try {
+            buffer.add("topic", new byte[1]);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFailedBatch() throws Exception {
+        final PublishBuffer buffer = buffer(BufferConfig.OverflowPolicy.FAIL);
+        final CompletableFuture<Void> future = buffer.add("topic", new byte[1]);
+        sent.take().future.completeExceptionally(new IllegalStateException("nsqd is gone"));
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    private static class Sent {
+        private final String topic;
+        private final List<byte[]> messages;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Sent(final String topic, final List<byte[]> messages) {
+            this.topic = topic;
+            this.messages = messages;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package fr.vsct.dt.nsq;
+
+import fr.vsct.dt.nsq.metrics.Counter;
+import fr.vsct.dt.nsq.metrics.DefaultMetricsRegistry;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RdyControllerTest {
+    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+    private final Counter backoffs = new DefaultMetricsRegistry().counter("backoffs");
+    private final Map<Connection, EmbeddedChannel> channels = new HashMap<>();
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+        for (final EmbeddedChannel channel : channels.values()) {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return a connection writing to an embedded channel, whose written commands are read by {@link #readySent}
+     */
+    private Connection connection() {
+        final EmbeddedChannel channel = new EmbeddedChannel();
+        final Connection connection = new Connection(new ServerAddress("localhost", 4150), new NSQConfig(), channel);
+        channels.put(connection, channel);
+        readySent(connection);
+        return connection;
+    }
+
+    /**
+     * @return the counts of the RDY commands written on the connection since the last call
+     */
+    private List<Integer> readySent(final Connection connection) {
+        final EmbeddedChannel channel = channels.get(connection);
+        channel.runPendingTasks();
+        final List<Integer> counts = new ArrayList<>();
+        Object written;
+        while ((written = channel.readOutbound()) != null) {
+            if (written instanceof NSQCommand && ((NSQCommand) written).getLine().startsWith("RDY ")) {
+                counts.add(Integer.valueOf(((NSQCommand) written).getLine().substring(4).trim()));
+            }
+        }
+        return counts;
+    }
+
+    private RdyController controller(final int maxInFlight, final Connection... connections) {
+        final RdyController controller = new RdyController(scheduler, maxInFlight, 1000, backoffs);
+        for (final Connection connection : connections) {
+            controller.addConnection(connection);
+        }
+        return controller;
+    }
+
+    @Test
+    public void testSplitMaxInFlight() {
+        final Connection first = connection();
+        final Connection second = connection();
+        final Connection third = connection();
+        final RdyController controller = controller(10, first, second, third);
+        assertEquals(4, first.getReadyCount());
+        assertEquals(3, second.getReadyCount());
+        assertEquals(3, third.getReadyCount());
+
+        // only the connections whose share changed get a new RDY
+        readySent(first);
+        readySent(second);
+        readySent(third);
+        controller.setMaxInFlight(11);
+        assertEquals(4, first.getReadyCount());
+        assertEquals(4, second.getReadyCount());
+        assertEquals(3, third.getReadyCount());
+        assertEquals(0, readySent(first).size());
+        assertEquals(1, readySent(second).size());
+        assertEquals(0, readySent(third).size());
+
+        controller.removeConnection(third);
+        assertEquals(6, first.getReadyCount());
+        assertEquals(5, second.getReadyCount());
+    }
+
+    @Test
+    public void testRotation() {
+        final Connection[] connections = new Connection[5];
+        for (int i = 0; i < connections.length; i++) {
+            connections[i] = connection();
+        }
+        final RdyController controller = controller(2, connections);
+        final Set<Connection> served = new HashSet<>();
+        for (int round = 0; round < 5; round++) {
+            final Set<Connection> ready = new HashSet<>();
+            for (final Connection connection : connections) {
+                assertTrue(connection.getReadyCount() <= 1);
+                if (connection.getReadyCount() == 1) {
+                    ready.add(connection);
+                }
+            }
+            // never more than max-in-flight, and the subset changes on every round
+            assertEquals(2, ready.size());
+            assertTrue(served.addAll(ready) || served.size() == connections.length);
+            controller.redistribute();
+        }
+        assertEquals(connections.length, served.size());
+    }
+
+    @Test
+    public void testLowWaterRefresh() {
+        final Connection connection = connection();
+        final RdyController controller = controller(8, connection);
+        readySent(connection);
+        // RDY 8 allows 8 messages, the refresh is sent once fewer than 2 are left
+        for (int i = 0; i < 6; i++) {
+            controller.messageReceived(connection);
+        }
+        assertEquals(0, readySent(connection).size());
+        controller.messageReceived(connection);
+        assertEquals(1, readySent(connection).size());
+        assertEquals(8, connection.getReadyCount());
+        assertEquals(7, connection.getInFlight());
+
+        controller.messageCompleted(connection);
+        assertEquals(6, connection.getInFlight());
+    }
+
+    @Test
+    public void testBackoffAndResume() {
+        final Connection first = connection();
+        final Connection second = connection();
+        final RdyController controller = controller(6, first, second);
+        readySent(first);
+        readySent(second);
+
+        controller.backoff();
+        assertEquals(1, backoffs.getCount());
+        assertEquals(0, first.getReadyCount());
+        assertEquals(0, second.getReadyCount());
+        assertEquals(1, readySent(first).size());
+        assertEquals(1, readySent(second).size());
+        // no refresh and no redistribution while backing off
+        controller.messageReceived(first);
+        controller.redistribute();
+        controller.backoff();
+        assertEquals(1, backoffs.getCount());
+        assertEquals(0, readySent(first).size());
+        assertEquals(0, readySent(second).size());
+
+        assertEquals(1000, resume(), 100);
+        assertEquals(3, first.getReadyCount());
+        assertEquals(3, second.getReadyCount());
+
+        // a second backoff in a row waits twice as long, a success starts again from the initial delay
+        controller.backoff();
+        assertEquals(2000, resume(), 100);
+        controller.success();
+        controller.backoff();
+        assertEquals(1000, resume(), 100);
+        assertEquals(3, backoffs.getCount());
+    }
+
+    /**
+     * Runs the scheduled resume without waiting for it.
+     *
+     * @return the delay it was scheduled with
+     */
+    private long resume() {
+        assertEquals(1, scheduler.getQueue().size());
+        final RunnableScheduledFuture<?> resume = (RunnableScheduledFuture<?>) scheduler.getQueue().iterator().next();
+        scheduler.remove(resume);
+        final long delay = resume.getDelay(TimeUnit.MILLISECONDS);
+        resume.run();
+        return delay;
+    }
+}
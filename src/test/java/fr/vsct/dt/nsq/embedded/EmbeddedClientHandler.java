@@ -0,0 +1,236 @@
+package fr.vsct.dt.nsq.embedded;
+
+import fr.vsct.dt.nsq.embedded.EmbeddedCommandDecoder.EmbeddedCommand;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.compression.SnappyFramedDecoder;
+import io.netty.handler.codec.compression.SnappyFramedEncoder;
+import io.netty.handler.codec.compression.ZlibCodecFactory;
+import io.netty.handler.codec.compression.ZlibWrapper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Server side of one client connection.
+ */
+class EmbeddedClientHandler extends SimpleChannelInboundHandler<EmbeddedCommand> {
+    private static final int FRAME_TYPE_RESPONSE = 0;
+    private static final int FRAME_TYPE_ERROR = 1;
+    private static final int FRAME_TYPE_MESSAGE = 2;
+    private static final Pattern TOPIC_NAME = Pattern.compile("[.a-zA-Z0-9_-]{1,64}(#ephemeral)?");
+    private static final Pattern SNAPPY = Pattern.compile("\"snappy\":\\s*true");
+    private static final Pattern DEFLATE = Pattern.compile("\"deflate\":\\s*true");
+    private static final String IDENTIFY_RESPONSE = "{\"max_rdy_count\":2500,\"version\":\"0.3.8\","
+            + "\"max_msg_timeout\":900000,\"msg_timeout\":60000,\"tls_v1\":false,\"deflate\":false,"
+            + "\"deflate_level\":0,\"max_deflate_level\":6,\"snappy\":false,\"sample_rate\":0,"
+            + "\"auth_required\":false,\"output_buffer_size\":16384,\"output_buffer_timeout\":250}";
+
+    private final EmbeddedNsqd nsqd;
+    private Channel channel;
+    private EmbeddedTopicChannel subscription;
+    private ScheduledFuture<?> heartbeats;
+    private volatile int ready = 0;
+    private int commands = 0;
+    // responses must keep the order of the commands, a delayed response holds back the next ones
+    private long lastResponseNanos = 0;
+    // guarded by the subscribed channel
+    int inFlight = 0;
+
+    EmbeddedClientHandler(final EmbeddedNsqd nsqd) {
+        this.nsqd = nsqd;
+    }
+
+    @Override
+    public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+        channel = ctx.channel();
+        final long interval = nsqd.getHeartbeatIntervalMillis();
+        heartbeats = ctx.executor().scheduleAtFixedRate(() -> {
+            writeFrame(FRAME_TYPE_RESPONSE, "_heartbeat_");
+            channel.flush();
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        heartbeats.cancel(false);
+        if (subscription != null) {
+            subscription.unsubscribe(this);
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    protected void channelRead0(final ChannelHandlerContext ctx, final EmbeddedCommand command) throws Exception {
+        final int disconnectEvery = nsqd.getDisconnectEvery();
+        if (disconnectEvery > 0 && ++commands % disconnectEvery == 0) {
+            ctx.close();
+            return;
+        }
+        if (command.getName().endsWith("PUB") && !TOPIC_NAME.matcher(command.getArgument(0)).matches()) {
+            error("E_BAD_TOPIC " + command.getName() + " topic name \"" + command.getArgument(0) + "\" is not valid");
+            return;
+        }
+        switch (command.getName()) {
+            case "IDENTIFY":
+                identify(ctx, new String(command.body, StandardCharsets.UTF_8));
+                break;
+            case "SUB":
+                subscription = nsqd.getTopic(command.getArgument(0)).getChannel(command.getArgument(1));
+                subscription.subscribe(this);
+                respond("OK");
+                break;
+            case "PUB":
+                nsqd.getTopic(command.getArgument(0)).publish(command.body);
+                respond("OK", nsqd.reservePublish(1));
+                break;
+            case "MPUB":
+                final EmbeddedTopic topic = nsqd.getTopic(command.getArgument(0));
+                final ByteBuf body = Unpooled.wrappedBuffer(command.body);
+                final int count = body.readInt();
+                for (int i = 0; i < count; i++) {
+                    final byte[] message = new byte[body.readInt()];
+                    body.readBytes(message);
+                    topic.publish(message);
+                }
+                respond("OK", nsqd.reservePublish(count));
+                break;
+            case "DPUB":
+                final EmbeddedTopic deferredTopic = nsqd.getTopic(command.getArgument(0));
+                final long defer = Long.parseLong(command.getArgument(1));
+                nsqd.getGroup().schedule(() -> deferredTopic.publish(command.body), defer, TimeUnit.MILLISECONDS);
+                respond("OK", nsqd.reservePublish(1));
+                break;
+            case "RDY":
+                ready = Integer.parseInt(command.getArgument(0));
+                if (subscription != null) {
+                    subscription.deliver();
+                }
+                break;
+            case "FIN":
+                if (subscription != null) {
+                    subscription.finish(this, command.getArgument(0));
+                }
+                break;
+            case "REQ":
+                if (subscription != null) {
+                    subscription.requeue(this, command.getArgument(0), Long.parseLong(command.getArgument(1)));
+                }
+                break;
+            case "TOUCH":
+                if (subscription != null) {
+                    subscription.touch(this, command.getArgument(0));
+                }
+                break;
+            case "NOP":
+                break;
+            case "CLS":
+                ready = 0;
+                respond("CLOSE_WAIT");
+                break;
+            default:
+                error("E_INVALID invalid command " + command.getName());
+                ctx.close();
+        }
+    }
+
+    /**
+     * Answers IDENTIFY and, when the client asks for snappy or deflate, compresses the connection from then on and
+     * confirms it with an OK, as nsqd does.
+     */
+    private void identify(final ChannelHandlerContext ctx, final String body) {
+        final boolean snappy = SNAPPY.matcher(body).find();
+        final boolean deflate = !snappy && DEFLATE.matcher(body).find();
+        if (!snappy && !deflate) {
+            respond(IDENTIFY_RESPONSE);
+            return;
+        }
+        writeFrame(FRAME_TYPE_RESPONSE, IDENTIFY_RESPONSE.replace("\"snappy\":false", "\"snappy\":" + snappy)
+                .replace("\"deflate\":false", "\"deflate\":" + deflate));
+        channel.flush();
+        if (snappy) {
+            ctx.pipeline().addFirst("SnappyEncoder", new SnappyFramedEncoder());
+            ctx.pipeline().addFirst("SnappyDecoder", new SnappyFramedDecoder());
+        } else {
+            ctx.pipeline().addFirst("DeflateEncoder", ZlibCodecFactory.newZlibEncoder(ZlibWrapper.NONE, 6));
+            ctx.pipeline().addFirst("DeflateDecoder", ZlibCodecFactory.newZlibDecoder(ZlibWrapper.NONE));
+        }
+        writeFrame(FRAME_TYPE_RESPONSE, "OK");
+    }
+
+    @Override
+    public void channelReadComplete(final ChannelHandlerContext ctx) throws Exception {
+        ctx.flush();
+        super.channelReadComplete(ctx);
+    }
+
+    long getMessageTimeoutMillis() {
+        return nsqd.getMessageTimeoutMillis();
+    }
+
+    boolean isReady() {
+        return channel.isActive() && inFlight < ready;
+    }
+
+    void write(final EmbeddedMessage message) {
+        final ByteBuf frame = channel.alloc().buffer(4 + 4 + 8 + 2 + 16 + message.body.length);
+        frame.writeInt(4 + 8 + 2 + 16 + message.body.length);
+        frame.writeInt(FRAME_TYPE_MESSAGE);
+        frame.writeLong(message.timestamp);
+        frame.writeShort(message.attempts);
+        frame.writeBytes(message.idBytes);
+        frame.writeBytes(message.body);
+        channel.write(frame);
+    }
+
+    void flush() {
+        channel.flush();
+    }
+
+    void respond(final String response) {
+        respond(response, 0);
+    }
+
+    /**
+     * Writes a response after the configured latency plus an extra delay, the responses of the client are
+     * flushed when its pending commands have been read.
+     */
+    void respond(final String response, final long delayMillis) {
+        reply(FRAME_TYPE_RESPONSE, response, delayMillis);
+    }
+
+    void error(final String error) {
+        reply(FRAME_TYPE_ERROR, error, 0);
+        channel.flush();
+    }
+
+    private void reply(final int type, final String data, final long delayMillis) {
+        final long now = System.nanoTime();
+        final long at = Math.max(now + TimeUnit.MILLISECONDS.toNanos(nsqd.getLatencyMillis() + delayMillis),
+                lastResponseNanos);
+        if (at <= now) {
+            writeFrame(type, data);
+            return;
+        }
+        lastResponseNanos = at;
+        channel.eventLoop().schedule(() -> {
+            writeFrame(type, data);
+            channel.flush();
+        }, at - now, TimeUnit.NANOSECONDS);
+    }
+
+    private void writeFrame(final int type, final String data) {
+        final byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        final ByteBuf frame = channel.alloc().buffer(8 + bytes.length);
+        frame.writeInt(4 + bytes.length);
+        frame.writeInt(type);
+        frame.writeBytes(bytes);
+        channel.write(frame);
+    }
+}
@@ -0,0 +1,72 @@
+package fr.vsct.dt.nsq.embedded;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Decodes the client side of the V2 protocol: the magic, then command lines optionally followed by a
+ * size-prefixed body.
+ */
+class EmbeddedCommandDecoder extends ByteToMessageDecoder {
+    private boolean magicRead = false;
+
+    @Override
+    protected void decode(final ChannelHandlerContext ctx, final ByteBuf in, final List<Object> out) throws Exception {
+        if (!magicRead) {
+            if (in.readableBytes() < 4) {
+                return;
+            }
+            in.skipBytes(4);
+            magicRead = true;
+        }
+        final int eol = in.indexOf(in.readerIndex(), in.writerIndex(), (byte) '\n');
+        if (eol < 0) {
+            return;
+        }
+        final int lineLength = eol - in.readerIndex() + 1;
+        final String[] line = in.toString(in.readerIndex(), lineLength - 1, StandardCharsets.US_ASCII).split(" ");
+        byte[] body = null;
+        if (hasBody(line[0])) {
+            if (in.readableBytes() < lineLength + 4) {
+                return;
+            }
+            final int size = in.getInt(in.readerIndex() + lineLength);
+            if (in.readableBytes() < lineLength + 4 + size) {
+                return;
+            }
+            in.skipBytes(lineLength + 4);
+            body = new byte[size];
+            in.readBytes(body);
+        } else {
+            in.skipBytes(lineLength);
+        }
+        out.add(new EmbeddedCommand(line, body));
+    }
+
+    private static boolean hasBody(final String name) {
+        return "PUB".equals(name) || "MPUB".equals(name) || "DPUB".equals(name) || "IDENTIFY".equals(name)
+                || "AUTH".equals(name);
+    }
+
+    static class EmbeddedCommand {
+        final String[] line;
+        final byte[] body;
+
+        EmbeddedCommand(final String[] line, final byte[] body) {
+            this.line = line;
+            this.body = body;
+        }
+
+        String getName() {
+            return line[0];
+        }
+
+        String getArgument(final int index) {
+            return index < line.length - 1 ? line[index + 1] : null;
+        }
+    }
+}
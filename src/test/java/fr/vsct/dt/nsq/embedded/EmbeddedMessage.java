@@ -0,0 +1,23 @@
+package fr.vsct.dt.nsq.embedded;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+class EmbeddedMessage {
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    final String id;
+    final byte[] idBytes;
+    final byte[] body;
+    final long timestamp;
+    int attempts = 0;
+    EmbeddedClientHandler owner;
+    long deadline;
+
+    EmbeddedMessage(final byte[] body) {
+        this.id = String.format("%016x", SEQUENCE.incrementAndGet());
+        this.idBytes = id.getBytes(StandardCharsets.US_ASCII);
+        this.body = body;
+        this.timestamp = System.currentTimeMillis() * 1000000L;
+    }
+}
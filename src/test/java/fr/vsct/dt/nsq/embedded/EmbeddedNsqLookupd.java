@@ -0,0 +1,164 @@
+package fr.vsct.dt.nsq.embedded;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process stand-in for nsqlookupd, it answers /lookup and /nodes with the registered {@link EmbeddedNsqd}s
+ * hosting the topics, so that consumers can be tested with lookup, rebalancing and reconnection.
+ */
+public class EmbeddedNsqLookupd implements Closeable {
+    private final List<EmbeddedNsqd> nodes = new CopyOnWriteArrayList<>();
+    private final EventLoopGroup group = new NioEventLoopGroup(1);
+    private Channel serverChannel;
+
+    public EmbeddedNsqLookupd start() {
+        final ServerBootstrap bootstrap = new ServerBootstrap();
+        bootstrap.group(group);
+        bootstrap.channel(NioServerSocketChannel.class);
+        bootstrap.childHandler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(final SocketChannel ch) throws Exception {
+                ch.pipeline().addLast("HttpCodec", new HttpServerCodec());
+                ch.pipeline().addLast("HttpAggregator", new HttpObjectAggregator(64 * 1024));
+                ch.pipeline().addLast("LookupHandler", new LookupHandler());
+            }
+        });
+        serverChannel = bootstrap.bind("127.0.0.1", 0).syncUninterruptibly().channel();
+        return this;
+    }
+
+    public int getPort() {
+        return ((InetSocketAddress) serverChannel.localAddress()).getPort();
+    }
+
+    /**
+     * Registers a nsqd, it is returned by lookups once one of its topics was published to or subscribed.
+     */
+    public EmbeddedNsqLookupd register(final EmbeddedNsqd nsqd) {
+        nodes.add(nsqd);
+        return this;
+    }
+
+    public EmbeddedNsqLookupd unregister(final EmbeddedNsqd nsqd) {
+        nodes.remove(nsqd);
+        return this;
+    }
+
+    String lookup(final String topic) {
+        final StringBuilder producers = new StringBuilder();
+        for (final EmbeddedNsqd nsqd : nodes) {
+            if (nsqd.hasTopic(topic)) {
+                if (producers.length() > 0) {
+                    producers.append(',');
+                }
+                appendProducer(producers, nsqd).append('}');
+            }
+        }
+        if (producers.length() == 0) {
+            return null;
+        }
+        return "{\"status_code\":200,\"status_txt\":\"OK\",\"data\":{\"channels\":[],\"producers\":["
+                + producers + "]}}";
+    }
+
+    String nodes() {
+        final StringBuilder producers = new StringBuilder();
+        for (final EmbeddedNsqd nsqd : nodes) {
+            if (producers.length() > 0) {
+                producers.append(',');
+            }
+            final StringBuilder topics = new StringBuilder();
+            final StringBuilder tombstones = new StringBuilder();
+            for (final String topic : nsqd.getTopics()) {
+                if (topics.length() > 0) {
+                    topics.append(',');
+                    tombstones.append(',');
+                }
+                topics.append('"').append(topic).append('"');
+                tombstones.append("false");
+            }
+            appendProducer(producers, nsqd).append(",\"tombstones\":[").append(tombstones)
+                    .append("],\"topics\":[").append(topics).append("]}");
+        }
+        return "{\"status_code\":200,\"status_txt\":\"OK\",\"data\":{\"producers\":[" + producers + "]}}";
+    }
+
+    private static StringBuilder appendProducer(final StringBuilder producers, final EmbeddedNsqd nsqd) {
+        return producers.append("{\"remote_address\":\"127.0.0.1:").append(nsqd.getPort())
+                .append("\",\"hostname\":\"localhost\",\"broadcast_address\":\"127.0.0.1\",\"tcp_port\":")
+                .append(nsqd.getPort()).append(",\"http_port\":0,\"version\":\"0.3.8\"");
+    }
+
+    @Override
+    public void close() {
+        if (group.isShuttingDown()) {
+            return;
+        }
+        if (serverChannel != null) {
+            serverChannel.close().syncUninterruptibly();
+        }
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+    }
+
+    private class LookupHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        @Override
+        protected void channelRead0(final ChannelHandlerContext ctx, final FullHttpRequest request) throws Exception {
+            final QueryStringDecoder query = new QueryStringDecoder(request.getUri());
+            switch (query.path()) {
+                case "/ping":
+                    respond(ctx, HttpResponseStatus.OK, "OK");
+                    break;
+                case "/lookup":
+                    final List<String> topic = query.parameters().get("topic");
+                    final String body = topic == null ? null : lookup(topic.get(0));
+                    if (body == null) {
+                        respond(ctx, HttpResponseStatus.NOT_FOUND,
+                                "{\"status_code\":404,\"status_txt\":\"TOPIC_NOT_FOUND\",\"data\":null}");
+                    } else {
+                        respond(ctx, HttpResponseStatus.OK, body);
+                    }
+                    break;
+                case "/nodes":
+                    respond(ctx, HttpResponseStatus.OK, nodes());
+                    break;
+                default:
+                    respond(ctx, HttpResponseStatus.NOT_FOUND,
+                            "{\"status_code\":404,\"status_txt\":\"NOT_FOUND\",\"data\":null}");
+            }
+        }
+
+        private void respond(final ChannelHandlerContext ctx, final HttpResponseStatus status, final String body) {
+            final FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status,
+                    Unpooled.copiedBuffer(body, StandardCharsets.UTF_8));
+            response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "application/json; charset=utf-8");
+            response.headers().set(HttpHeaders.Names.CONTENT_LENGTH, response.content().readableBytes());
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package fr.vsct.dt.nsq.embedded;
+
+import fr.vsct.dt.nsq.ServerAddress;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for nsqd speaking the V2 TCP protocol on the loopback interface, for tests and benchmarks
+ * that must run without an nsqd installation.
+ * <p>
+ * It supports IDENTIFY (with snappy or deflate, without TLS), SUB, RDY, PUB, MPUB, DPUB, FIN, REQ, TOUCH, NOP, CLS,
+ * heartbeats and message timeouts. Latency, a publish rate cap and disconnections can be injected to test the
+ * client in degraded conditions.
+ */
+public class EmbeddedNsqd implements Closeable {
+    private static final long TIMEOUT_SCAN_MILLIS = 100;
+
+    private final ConcurrentMap<String, EmbeddedTopic> topics = new ConcurrentHashMap<>();
+    private final EventLoopGroup group = new NioEventLoopGroup();
+    private final ChannelGroup clients = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+    private final AtomicLong nextPublishNanos = new AtomicLong();
+    private Channel serverChannel;
+    private volatile long latencyMillis = 0;
+    private volatile int maxPublishRate = 0;
+    private volatile int disconnectEvery = 0;
+    private volatile long heartbeatIntervalMillis = 30000;
+    private volatile long messageTimeoutMillis = 60000;
+
+    public EmbeddedNsqd start() {
+        final ServerBootstrap bootstrap = new ServerBootstrap();
+        bootstrap.group(group);
+        bootstrap.channel(NioServerSocketChannel.class);
+        bootstrap.childHandler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(final SocketChannel ch) throws Exception {
+                clients.add(ch);
+                ch.pipeline().addLast("CommandDecoder", new EmbeddedCommandDecoder());
+                ch.pipeline().addLast("ClientHandler", new EmbeddedClientHandler(EmbeddedNsqd.this));
+            }
+        });
+        serverChannel = bootstrap.bind("127.0.0.1", 0).syncUninterruptibly().channel();
+        group.scheduleAtFixedRate(this::requeueTimedOut, TIMEOUT_SCAN_MILLIS, TIMEOUT_SCAN_MILLIS, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    public int getPort() {
+        return ((InetSocketAddress) serverChannel.localAddress()).getPort();
+    }
+
+    public ServerAddress getAddress() {
+        return new ServerAddress("127.0.0.1", getPort());
+    }
+
+    /**
+     * Delay added before every response to a command.
+     */
+    public EmbeddedNsqd setLatencyMillis(final long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    /**
+     * Maximum number of published messages per second, publishers are slowed down by delaying their responses.
+     * 0 means unlimited.
+     */
+    public EmbeddedNsqd setMaxPublishRate(final int messagesPerSecond) {
+        this.maxPublishRate = messagesPerSecond;
+        return this;
+    }
+
+    /**
+     * Closes every client connection after this number of commands. 0 disables it.
+     */
+    public EmbeddedNsqd setDisconnectEvery(final int commands) {
+        this.disconnectEvery = commands;
+        return this;
+    }
+
+    /**
+     * Interval between heartbeats, only applies to the connections opened afterwards.
+     */
+    public EmbeddedNsqd setHeartbeatIntervalMillis(final long heartbeatIntervalMillis) {
+        this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+        return this;
+    }
+
+    /**
+     * Time after which a message in flight which is not finished, requeued nor touched is requeued.
+     */
+    public EmbeddedNsqd setMessageTimeoutMillis(final long messageTimeoutMillis) {
+        this.messageTimeoutMillis = messageTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Closes all the client connections.
+     */
+    public void disconnectAll() {
+        clients.close().syncUninterruptibly();
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    public boolean hasTopic(final String topic) {
+        return topics.containsKey(topic);
+    }
+
+    public Set<String> getTopics() {
+        return topics.keySet();
+    }
+
+    /**
+     * @return the number of messages published on a topic since the server started
+     */
+    public long getPublishedCount(final String topic) {
+        final EmbeddedTopic t = topics.get(topic);
+        return t == null ? 0 : t.getPublishedCount();
+    }
+
+    /**
+     * @return the number of messages finished by consumers of a topic/channel
+     */
+    public long getFinishedCount(final String topic, final String channel) {
+        final EmbeddedTopicChannel c = findChannel(topic, channel);
+        return c == null ? 0 : c.getFinishedCount();
+    }
+
+    /**
+     * @return the number of messages requeued by consumers of a topic/channel, or after a timeout
+     */
+    public long getRequeuedCount(final String topic, final String channel) {
+        final EmbeddedTopicChannel c = findChannel(topic, channel);
+        return c == null ? 0 : c.getRequeuedCount();
+    }
+
+    /**
+     * @return the number of messages waiting to be delivered on a topic/channel
+     */
+    public int getDepth(final String topic, final String channel) {
+        final EmbeddedTopicChannel c = findChannel(topic, channel);
+        return c == null ? 0 : c.getDepth();
+    }
+
+    private EmbeddedTopicChannel findChannel(final String topic, final String channel) {
+        final EmbeddedTopic t = topics.get(topic);
+        return t == null ? null : t.findChannel(channel);
+    }
+
+    EmbeddedTopic getTopic(final String name) {
+        return topics.computeIfAbsent(name, n -> new EmbeddedTopic(n, group));
+    }
+
+    EventLoopGroup getGroup() {
+        return group;
+    }
+
+    long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    int getDisconnectEvery() {
+        return disconnectEvery;
+    }
+
+    long getHeartbeatIntervalMillis() {
+        return heartbeatIntervalMillis;
+    }
+
+    long getMessageTimeoutMillis() {
+        return messageTimeoutMillis;
+    }
+
+    /**
+     * Reserves publish capacity for messages.
+     *
+     * @return how long the publisher must wait for its response to respect the max publish rate
+     */
+    long reservePublish(final int messages) {
+        final int rate = maxPublishRate;
+        if (rate <= 0) {
+            return 0;
+        }
+        final long cost = TimeUnit.SECONDS.toNanos(messages) / rate;
+        final long now = System.nanoTime();
+        long start;
+        long next;
+        do {
+            next = nextPublishNanos.get();
+            start = Math.max(next, now);
+        } while (!nextPublishNanos.compareAndSet(next, start + cost));
+        return TimeUnit.NANOSECONDS.toMillis(start + cost - now);
+    }
+
+    private void requeueTimedOut() {
+        final long now = System.currentTimeMillis();
+        for (final EmbeddedTopic topic : topics.values()) {
+            topic.requeueTimedOut(now);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (serverChannel != null) {
+            serverChannel.close().syncUninterruptibly();
+        }
+        clients.close().syncUninterruptibly();
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+    }
+}
@@ -0,0 +1,69 @@
+package fr.vsct.dt.nsq.embedded;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A topic copies every message to each of its channels, messages published before the first channel
+ * exists are kept until it is created.
+ */
+class EmbeddedTopic {
+    private final String name;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, EmbeddedTopicChannel> channels = new ConcurrentHashMap<>();
+    private final Deque<byte[]> backlog = new ArrayDeque<>();
+    private final AtomicLong published = new AtomicLong();
+
+    EmbeddedTopic(final String name, final ScheduledExecutorService scheduler) {
+        this.name = name;
+        this.scheduler = scheduler;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    synchronized void publish(final byte[] body) {
+        published.incrementAndGet();
+        if (channels.isEmpty()) {
+            backlog.add(body);
+            return;
+        }
+        for (final EmbeddedTopicChannel channel : channels.values()) {
+            channel.put(new EmbeddedMessage(body));
+        }
+    }
+
+    synchronized EmbeddedTopicChannel getChannel(final String name) {
+        EmbeddedTopicChannel channel = channels.get(name);
+        if (channel == null) {
+            channel = new EmbeddedTopicChannel(scheduler);
+            channels.put(name, channel);
+            while (!backlog.isEmpty()) {
+                channel.put(new EmbeddedMessage(backlog.poll()));
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * @return the channel, or null if nobody subscribed to it yet
+     */
+    EmbeddedTopicChannel findChannel(final String name) {
+        return channels.get(name);
+    }
+
+    void requeueTimedOut(final long now) {
+        for (final EmbeddedTopicChannel channel : channels.values()) {
+            channel.requeueTimedOut(now);
+        }
+    }
+
+    long getPublishedCount() {
+        return published.get();
+    }
+}
@@ -0,0 +1,173 @@
+package fr.vsct.dt.nsq.embedded;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue of a channel, messages are spread over the subscribed clients according to their RDY count.
+ */
+class EmbeddedTopicChannel {
+    private final ScheduledExecutorService scheduler;
+    private final Deque<EmbeddedMessage> queue = new ArrayDeque<>();
+    private final Map<String, EmbeddedMessage> inFlight = new HashMap<>();
+    private final List<EmbeddedClientHandler> clients = new ArrayList<>();
+    private final AtomicLong finished = new AtomicLong();
+    private final AtomicLong requeued = new AtomicLong();
+    private int next = 0;
+
+    EmbeddedTopicChannel(final ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    synchronized void put(final EmbeddedMessage message) {
+        queue.add(message);
+        deliver();
+    }
+
+    synchronized void subscribe(final EmbeddedClientHandler client) {
+        clients.add(client);
+    }
+
+    /**
+     * Puts the messages in flight on a disconnected client back at the head of the queue.
+     */
+    synchronized void unsubscribe(final EmbeddedClientHandler client) {
+        clients.remove(client);
+        for (final Iterator<EmbeddedMessage> it = inFlight.values().iterator(); it.hasNext(); ) {
+            final EmbeddedMessage message = it.next();
+            if (message.owner == client) {
+                it.remove();
+                message.owner = null;
+                queue.addFirst(message);
+            }
+        }
+        deliver();
+    }
+
+    synchronized void finish(final EmbeddedClientHandler client, final String id) {
+        if (take(client, id) == null) {
+            client.error("E_FIN_FAILED FIN " + id + " failed");
+            return;
+        }
+        finished.incrementAndGet();
+        deliver();
+    }
+
+    /**
+     * Puts a message back in the queue, immediately or once the timeout expired.
+     */
+    synchronized void requeue(final EmbeddedClientHandler client, final String id, final long timeoutMillis) {
+        final EmbeddedMessage message = take(client, id);
+        if (message == null) {
+            client.error("E_REQ_FAILED REQ " + id + " failed");
+            return;
+        }
+        requeued.incrementAndGet();
+        if (timeoutMillis > 0) {
+            scheduler.schedule(() -> put(message), timeoutMillis, TimeUnit.MILLISECONDS);
+        } else {
+            queue.add(message);
+        }
+        deliver();
+    }
+
+    synchronized void touch(final EmbeddedClientHandler client, final String id) {
+        final EmbeddedMessage message = inFlight.get(id);
+        if (message == null || message.owner != client) {
+            client.error("E_TOUCH_FAILED TOUCH " + id + " failed");
+            return;
+        }
+        message.deadline = System.currentTimeMillis() + client.getMessageTimeoutMillis();
+    }
+
+    /**
+     * Requeues the messages whose deadline passed, as nsqd does when a client neither finishes nor touches them.
+     */
+    synchronized void requeueTimedOut(final long now) {
+        boolean expired = false;
+        for (final Iterator<EmbeddedMessage> it = inFlight.values().iterator(); it.hasNext(); ) {
+            final EmbeddedMessage message = it.next();
+            if (message.deadline <= now) {
+                it.remove();
+                message.owner.inFlight--;
+                message.owner = null;
+                requeued.incrementAndGet();
+                queue.add(message);
+                expired = true;
+            }
+        }
+        if (expired) {
+            deliver();
+        }
+    }
+
+    private EmbeddedMessage take(final EmbeddedClientHandler client, final String id) {
+        final EmbeddedMessage message = inFlight.get(id);
+        if (message == null || message.owner != client) {
+            return null;
+        }
+        inFlight.remove(id);
+        client.inFlight--;
+        message.owner = null;
+        return message;
+    }
+
+    synchronized void deliver() {
+        final Set<EmbeddedClientHandler> written = new LinkedHashSet<>();
+        final long now = System.currentTimeMillis();
+        while (!queue.isEmpty()) {
+            final EmbeddedClientHandler client = nextReadyClient();
+            if (client == null) {
+                break;
+            }
+            final EmbeddedMessage message = queue.poll();
+            message.attempts++;
+            message.owner = client;
+            message.deadline = now + client.getMessageTimeoutMillis();
+            inFlight.put(message.id, message);
+            client.inFlight++;
+            client.write(message);
+            written.add(client);
+        }
+        for (final EmbeddedClientHandler client : written) {
+            client.flush();
+        }
+    }
+
+    private EmbeddedClientHandler nextReadyClient() {
+        for (int i = 0; i < clients.size(); i++) {
+            final EmbeddedClientHandler client = clients.get((next + i) % clients.size());
+            if (client.isReady()) {
+                next = (next + i + 1) % clients.size();
+                return client;
+            }
+        }
+        return null;
+    }
+
+    long getFinishedCount() {
+        return finished.get();
+    }
+
+    long getRequeuedCount() {
+        return requeued.get();
+    }
+
+    synchronized int getDepth() {
+        return queue.size();
+    }
+
+    synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+}
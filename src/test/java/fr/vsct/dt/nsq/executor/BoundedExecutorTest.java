@@ -0,0 +1,77 @@
+package fr.vsct.dt.nsq.executor;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BoundedExecutorTest {
+
+    @Test
+    public void testLimitsConcurrency() throws InterruptedException {
+        final BoundedExecutor executor = new BoundedExecutor(VirtualThreads.newExecutor(), 2);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        try {
+            for (int i = 0; i < 2; i++) {
+                executor.execute(() -> {
+                    try {
+                        blocked.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    done.countDown();
+                });
+            }
+            try {
+                executor.execute(() -> fail("should have been rejected"));
+                fail("should have been rejected");
+            } catch (RejectedExecutionException e) {
+                assertEquals(0, executor.getAvailablePermits());
+            }
+            blocked.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(2, executor.getAvailablePermits());
+    }
+
+    @Test
+    public void testResize() throws InterruptedException {
+        final BoundedExecutor executor = new BoundedExecutor(VirtualThreads.newExecutor(), 2);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        final Runnable task = () -> {
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            done.countDown();
+        };
+        try {
+            executor.execute(task);
+            executor.execute(task);
+            executor.setMaxConcurrency(3);
+            executor.execute(task);
+            assertEquals(0, executor.getAvailablePermits());
+
+            // lowering the limit below the running tasks rejects until enough of them are done
+            executor.setMaxConcurrency(1);
+            assertEquals(0, executor.getAvailablePermits());
+            blocked.countDown();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1, executor.getAvailablePermits());
+    }
+}
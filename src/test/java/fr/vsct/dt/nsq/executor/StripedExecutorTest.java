@@ -0,0 +1,66 @@
+package fr.vsct.dt.nsq.executor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StripedExecutorTest {
+
+    @Test
+    public void testSameKeyRunsInOrder() throws InterruptedException {
+        final StripedExecutor executor = new StripedExecutor(4, 4000);
+        final List<List<Integer>> seen = new ArrayList<>();
+        for (int key = 0; key < 10; key++) {
+            seen.add(Collections.synchronizedList(new ArrayList<>()));
+        }
+        for (int i = 0; i < 100; i++) {
+            for (int key = 0; key < 10; key++) {
+                final int value = i;
+                final List<Integer> values = seen.get(key);
+                executor.execute(key, () -> values.add(value));
+            }
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        for (final List<Integer> values : seen) {
+            assertEquals(100, values.size());
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, (int) values.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testRejectsWhenFull() throws InterruptedException {
+        final StripedExecutor executor = new StripedExecutor(2, 2);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        try {
+            // 2 running and 2 queued
+            for (int i = 0; i < 4; i++) {
+                executor.execute(() -> {
+                    try {
+                        blocked.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            executor.execute(() -> fail("should have been rejected"));
+            fail("should have been rejected");
+        } catch (RejectedExecutionException e) {
+            assertEquals(2, executor.getQueueSize());
+        } finally {
+            blocked.countDown();
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package fr.vsct.dt.nsq.journal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpillJournalTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<byte[]> messages(final String... messages) {
+        final List<byte[]> bytes = new ArrayList<>();
+        for (final String message : messages) {
+            bytes.add(message.getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes;
+    }
+
+    private static List<String> strings(final SpillJournal.Batch batch) {
+        final List<String> strings = new ArrayList<>();
+        for (final byte[] message : batch.getMessages()) {
+            strings.add(new String(message, StandardCharsets.UTF_8));
+        }
+        return strings;
+    }
+
+    @Test
+    public void testAppendAndReadByTopic() throws Exception {
+        final SpillJournal journal = new SpillJournal(folder.getRoot().toPath(), 1024, 4);
+        assertTrue(journal.append("a", messages("1", "2")));
+        assertTrue(journal.append("b", messages("3")));
+        assertTrue(journal.append("a", messages("4")));
+        assertEquals(4, journal.getPendingCount());
+
+        SpillJournal.Batch batch = journal.next(10, 1024);
+        assertEquals("a", batch.getTopic());
+        assertEquals(Arrays.asList("1", "2"), strings(batch));
+        // not committed, read again
+        assertEquals(Arrays.asList("1", "2"), strings(journal.next(10, 1024)));
+        journal.commit(batch);
+
+        batch = journal.next(10, 1024);
+        assertEquals("b", batch.getTopic());
+        journal.commit(batch);
+        batch = journal.next(10, 1024);
+        assertEquals(Collections.singletonList("4"), strings(batch));
+        journal.commit(batch);
+        assertNull(journal.next(10, 1024));
+        assertEquals(0, journal.getPendingCount());
+    }
+
+    @Test
+    public void testRecoverAfterReopen() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        SpillJournal journal = new SpillJournal(directory, 64, 8);
+        assertTrue(journal.append("topic", messages("first", "second", "third", "fourth", "fifth")));
+        journal.commit(journal.next(2, 1024));
+        journal.close();
+
+        journal = new SpillJournal(directory, 64, 8);
+        assertEquals(3, journal.getPendingCount());
+        final List<String> read = new ArrayList<>();
+        SpillJournal.Batch batch;
+        while ((batch = journal.next(10, 1024)) != null) {
+            read.addAll(strings(batch));
+            journal.commit(batch);
+        }
+        assertEquals(Arrays.asList("third", "fourth", "fifth"), read);
+    }
+
+    @Test
+    public void testRefuseWhenFull() throws Exception {
+        final SpillJournal journal = new SpillJournal(folder.getRoot().toPath(), 128, 2);
+        assertTrue(journal.append("topic", messages("01234567890123456789012345678901234567890123456789")));
+        assertTrue(journal.append("topic", messages("01234567890123456789012345678901234567890123456789")));
+        // all or nothing
+        assertFalse(journal.append("topic", messages("small", "01234567890123456789012345678901234567890123456789")));
+        assertEquals(2, journal.getPendingCount());
+    }
+
+    @Test
+    public void testRecycleSegments() throws Exception {
+        final Path directory = folder.getRoot().toPath();
+        final SpillJournal journal = new SpillJournal(directory, 128, 2);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(journal.append("topic", messages("01234567890123456789012345678901234567890123456789" + i)));
+            final SpillJournal.Batch batch = journal.next(10, 1024);
+            assertEquals(1, batch.getMessages().size());
+            journal.commit(batch);
+        }
+        assertEquals(0, journal.getPendingCount());
+        assertEquals(2, Files.list(directory).count());
+    }
+}
@@ -0,0 +1,79 @@
+package fr.vsct.dt.nsq.lookup;
+
+import fr.vsct.dt.nsq.NSQProducer;
+import fr.vsct.dt.nsq.ServerAddress;
+import fr.vsct.dt.nsq.embedded.EmbeddedNsqLookupd;
+import fr.vsct.dt.nsq.embedded.EmbeddedNsqd;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DefaultNSQLookupTest {
+    private EmbeddedNsqd nsqd;
+    private EmbeddedNsqLookupd lookupd;
+
+    @Before
+    public void setUp() throws Exception {
+        nsqd = new EmbeddedNsqd().start();
+        lookupd = new EmbeddedNsqLookupd().start().register(nsqd);
+        final NSQProducer producer = new NSQProducer().addAddress("127.0.0.1", nsqd.getPort()).start();
+        producer.produce("lookup", "registers the topic".getBytes());
+        producer.shutdown();
+    }
+
+    @After
+    public void tearDown() {
+        lookupd.close();
+        nsqd.close();
+    }
+
+    @Test
+    public void testUnresponsiveServerDoesNotBlock() throws Exception {
+        // accepts connections but never answers
+        try (ServerSocket hung = new ServerSocket(0)) {
+            final DefaultNSQLookup lookup = new DefaultNSQLookup().setReadTimeoutMillis(300).setConnectTimeoutMillis(300);
+            lookup.addLookupAddress("127.0.0.1", hung.getLocalPort());
+            lookup.addLookupAddress("127.0.0.1", lookupd.getPort());
+            final long start = System.nanoTime();
+            assertEquals(Collections.singleton(nsqd.getAddress()), lookup.lookup("lookup"));
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        }
+    }
+
+    @Test
+    public void testLookupSeveralTopics() {
+        final DefaultNSQLookup lookup = new DefaultNSQLookup();
+        lookup.addLookupAddress("127.0.0.1", lookupd.getPort());
+        final Map<String, Set<ServerAddress>> addresses = lookup.lookup(Arrays.asList("lookup", "unknown"));
+        assertEquals(Collections.singleton(nsqd.getAddress()), addresses.get("lookup"));
+        assertTrue(addresses.get("unknown").isEmpty());
+    }
+
+    @Test
+    public void testUnknownTopic() {
+        final DefaultNSQLookup lookup = new DefaultNSQLookup();
+        lookup.addLookupAddress("127.0.0.1", lookupd.getPort());
+        assertTrue(lookup.lookup("unknown").isEmpty());
+    }
+
+    @Test
+    public void testStaleCacheWhenServersAreDown() {
+        final DefaultNSQLookup lookup = new DefaultNSQLookup().setCacheTtlMillis(0);
+        lookup.addLookupAddress("127.0.0.1", lookupd.getPort());
+        final ServerAddress address = nsqd.getAddress();
+        assertEquals(Collections.singleton(address), lookup.lookup("lookup"));
+
+        lookupd.close();
+        assertEquals(Collections.singleton(address), lookup.lookup("lookup"));
+    }
+}
@@ -0,0 +1,36 @@
+package fr.vsct.dt.nsq.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LongAdderHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        for (long value : new long[]{0, 1, 3, 4, 5, 7, 8, 1000, 123456789, Long.MAX_VALUE}) {
+            final int index = LongAdderHistogram.index(value);
+            assertTrue(value <= LongAdderHistogram.upperBound(index));
+            if (index > 0) {
+                assertTrue(value > LongAdderHistogram.upperBound(index - 1));
+            }
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        final Histogram histogram = new LongAdderHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+        assertEquals(1000, histogram.getMax());
+        final long median = histogram.getPercentile(50);
+        assertTrue(median >= 500 && median <= 500 * 1.25);
+        final long p99 = histogram.getPercentile(99);
+        assertTrue(p99 >= 990 && p99 <= 1000);
+        assertEquals(1000, histogram.getPercentile(100));
+    }
+}
@@ -0,0 +1,101 @@
+package fr.vsct.dt.nsq.netty;
+
+import fr.vsct.dt.nsq.MessageId;
+import fr.vsct.dt.nsq.NSQCommand;
+import com.google.common.collect.Lists;
+import fr.vsct.dt.nsq.serialization.StringCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class NSQEncoderTest {
+
+    @Test
+    public void testEncodeLines() {
+        assertEquals("RDY 200\n", encodeToString(NSQCommand.ready(200)));
+        assertEquals("NOP\n", encodeToString(NSQCommand.nop()));
+        assertEquals("SUB topic channel\n", encodeToString(NSQCommand.subscribe("topic", "channel")));
+        assertEquals("REQ 0123456789abcdef 0\n",
+                encodeToString(NSQCommand.requeue("0123456789abcdef".getBytes(StandardCharsets.US_ASCII), 0)));
+        assertEquals("CLS\n", encodeToString(NSQCommand.instance("CLS")));
+    }
+
+    @Test
+    public void testEncodeMessageIds() {
+        MessageId id = MessageId.of("0123456789abcdef".getBytes(StandardCharsets.US_ASCII));
+        assertEquals("0123456789abcdef", id.toString());
+        assertEquals("FIN 0123456789abcdef\n", encodeToString(NSQCommand.finish(id)));
+        assertEquals("REQ 0123456789abcdef 1000\n", encodeToString(NSQCommand.requeue(id, 1000)));
+        assertEquals("TOUCH 0123456789abcdef\n", encodeToString(NSQCommand.touch(id)));
+    }
+
+    @Test
+    public void testEncodeMultiPublish() {
+        byte[] small = "small".getBytes(StandardCharsets.US_ASCII);
+        byte[] large = new byte[4096];
+        Arrays.fill(large, (byte) 'x');
+        ByteBuf buf = encode(NSQCommand.multiPublish("test", Lists.newArrayList(small, large, small)));
+
+        byte[] line = new byte["MPUB test\n".length()];
+        buf.readBytes(line);
+        assertEquals("MPUB test\n", new String(line, StandardCharsets.US_ASCII));
+        assertEquals(4 + 3 * 4 + 2 * small.length + large.length, buf.readInt());
+        assertEquals(3, buf.readInt());
+        for (byte[] expected : Arrays.asList(small, large, small)) {
+            byte[] actual = new byte[buf.readInt()];
+            buf.readBytes(actual);
+            assertArrayEquals(expected, actual);
+        }
+        assertEquals(0, buf.readableBytes());
+        buf.release();
+    }
+
+    @Test
+    public void testEncodeDeferredPublish() {
+        ByteBuf buf = encode(NSQCommand.deferredPublish("test", "later".getBytes(StandardCharsets.US_ASCII), 1500));
+        byte[] line = new byte["DPUB test 1500\n".length()];
+        buf.readBytes(line);
+        assertEquals("DPUB test 1500\n", new String(line, StandardCharsets.US_ASCII));
+        assertEquals(5, buf.readInt());
+        assertEquals("later", buf.toString(StandardCharsets.US_ASCII));
+        buf.release();
+    }
+
+    @Test
+    public void testEncodeSerializedPublish() {
+        ByteBuf body = Unpooled.buffer();
+        new StringCodec().serialize("serialized", body);
+        NSQCommand command = NSQCommand.publish("test", body);
+        ByteBuf buf = encode(command);
+        byte[] line = new byte["PUB test\n".length()];
+        buf.readBytes(line);
+        assertEquals("PUB test\n", new String(line, StandardCharsets.US_ASCII));
+        assertEquals(10, buf.readInt());
+        assertEquals("serialized", buf.toString(StandardCharsets.US_ASCII));
+        // the body was handed over to the frame
+        assertNull(command.takeBody());
+        buf.release();
+        assertEquals(0, body.refCnt());
+    }
+
+    private ByteBuf encode(NSQCommand command) {
+        EmbeddedChannel channel = new EmbeddedChannel(new NSQEncoder());
+        channel.writeOutbound(command);
+        return (ByteBuf) channel.readOutbound();
+    }
+
+    private String encodeToString(NSQCommand command) {
+        ByteBuf buf = encode(command);
+        String line = buf.toString(StandardCharsets.US_ASCII);
+        buf.release();
+        return line;
+    }
+}
@@ -0,0 +1,96 @@
+package fr.vsct.dt.nsq.selection;
+
+import fr.vsct.dt.nsq.ServerAddress;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NodeSetTest {
+    private final ServerAddress fast = new ServerAddress("fast", 4150);
+    private final ServerAddress slow = new ServerAddress("slow", 4150);
+    private NodeSet nodes;
+
+    @Before
+    public void setUp() {
+        nodes = new NodeSet();
+        nodes.add(fast);
+        nodes.add(slow);
+    }
+
+    @Test
+    public void testAddAndRemove() {
+        assertFalse(nodes.add(fast));
+        assertTrue(nodes.remove(fast));
+        assertEquals(1, nodes.size());
+        assertSame(nodes.find(slow), nodes.select());
+        assertTrue(nodes.remove(slow));
+        assertNull(nodes.select());
+    }
+
+    @Test
+    public void testEjectAfterFailures() {
+        nodes.setMaxFailures(2);
+        final Node node = nodes.find(slow);
+        nodes.connectionFailed(node);
+        assertTrue(node.isAvailable(System.nanoTime()));
+        nodes.connectionFailed(node);
+        assertFalse(node.isAvailable(System.nanoTime()));
+        for (int i = 0; i < 10; i++) {
+            assertSame(nodes.find(fast), nodes.select());
+        }
+
+        // every node is ejected, they are still used
+        nodes.connectionFailed(nodes.find(fast));
+        nodes.connectionFailed(nodes.find(fast));
+        assertNotNull(nodes.select());
+    }
+
+    @Test
+    public void testEjectSlowNode() {
+        nodes.setSlowNodeFactor(5);
+        respond(fast, 1);
+        respond(slow, 2);
+        assertTrue(nodes.find(slow).isAvailable(System.nanoTime()));
+        respond(slow, 100);
+        assertFalse(nodes.find(slow).isAvailable(System.nanoTime()));
+    }
+
+    @Test
+    public void testLeastOutstanding() {
+        nodes.setSelector(new LeastOutstandingSelector());
+        nodes.requestStarted(nodes.find(slow));
+        for (int i = 0; i < 10; i++) {
+            assertSame(nodes.find(fast), nodes.select());
+        }
+    }
+
+    @Test
+    public void testPowerOfTwoChoices() {
+        nodes.setSelector(new PowerOfTwoChoicesSelector());
+        respond(fast, 1);
+        respond(slow, 10);
+        for (int i = 0; i < 10; i++) {
+            assertSame(nodes.find(fast), nodes.select());
+        }
+        // enough pending requests make the fast node more expensive
+        for (int i = 0; i < 20; i++) {
+            nodes.requestStarted(nodes.find(fast));
+        }
+        assertNotEquals(nodes.find(fast), nodes.select());
+    }
+
+    private void respond(final ServerAddress address, final long latencyMillis) {
+        final Node node = nodes.find(address);
+        nodes.requestStarted(node);
+        nodes.requestCompleted(node, TimeUnit.MILLISECONDS.toNanos(latencyMillis), true);
+    }
+}